@@ -0,0 +1,87 @@
+package com.kebab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Compares how long a script takes to run from scratch with how long it takes once its
+ * resolved program is in the cache. Each run is a new JVM running {@code App} with
+ * {@code --cache}, the cache emptied before every cold run. Runs the script given as the
+ * first argument, or a generated one of about the given number of megabytes, and reports
+ * the median of each.
+ *
+ *     mvn package
+ *     java -cp target/benchmarks.jar com.kebab.CacheBenchmark [script | megabytes]
+ */
+public class CacheBenchmark {
+    private static final int RUNS = 7;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path script;
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            script = Paths.get(args[0]);
+        } else {
+            script = Files.createTempFile("lox-benchmark", ".lox");
+            String source = ParseBenchmark.generate(args.length > 0 ? Integer.parseInt(args[0]) : 8);
+            Files.write(script, (source + "print \"done\";\n").getBytes(StandardCharsets.UTF_8));
+            script.toFile().deleteOnExit();
+        }
+        Path cache = Files.createTempDirectory("lox-cache");
+
+        long[] cold = new long[RUNS];
+        for (int i = 0; i < RUNS; ++i) {
+            clear(cache);
+            cold[i] = run(script, cache);
+        }
+
+        long[] cached = new long[RUNS];
+        for (int i = 0; i < RUNS; ++i) {
+            cached[i] = run(script, cache);
+        }
+        clear(cache);
+        Files.delete(cache);
+
+        System.out.printf("%.1f MB: %d ms cold, %d ms cached%n",
+                Files.size(script) / (1024.0 * 1024.0), median(cold), median(cached));
+    }
+
+    // Runs the script in a new JVM, returns how many milliseconds it took
+    private static long run(Path script, Path cache) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "com.kebab.App", "--cache=" + cache, script.toString());
+        builder.redirectErrorStream(true);
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try (InputStream output = process.getInputStream()) {
+            byte[] discard = new byte[8192];
+            while (output.read(discard) >= 0) {
+                // Only the time matters
+            }
+        }
+        if (process.waitFor() != 0) throw new IllegalStateException("The script failed to run.");
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void clear(Path cache) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cache)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,72 @@
+package com.kebab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the programs in {@code lox/} on each engine, a new engine and tree every run, to
+ * compare the engines with each other on the same work.
+ *
+ *     java -jar target/benchmarks.jar EngineBenchmark [-p engine=closure,specializing] [-p program=arithmetic]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+    @Param({"interpreter", "vm", "closure", "specializing", "jvm"})
+    public String engine;
+
+    @Param({"fib", "binary_trees", "method_dispatch", "closures", "while_loop", "arithmetic"})
+    public String program;
+
+    private String source;
+    private List<Stmt> statements;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = PipelineBenchmark.read(program);
+
+        // The programs print their results, which would only get in the way
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    // The engines keep what they compiled in the tree, so every run gets a new one
+    @Setup(Level.Invocation)
+    public void parse() {
+        List<Stmt> parsed = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(parsed);
+        statements = new Optimizer().optimize(parsed);
+    }
+
+    @Benchmark
+    public void run() {
+        App.createEngine(engine).interpret(statements);
+    }
+}
@@ -0,0 +1,65 @@
+package com.kebab;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how fast a large source is scanned and parsed. Parses the script given as the
+ * first argument, or a generated one of about the given number of megabytes, a few times
+ * to warm up and then reports the average of the measured runs.
+ *
+ *     mvn package
+ *     java -Xms1g -Xmn700m -cp target/benchmarks.jar com.kebab.ParseBenchmark [script | megabytes]
+ */
+public class ParseBenchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws IOException {
+        String source;
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            source = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+        } else {
+            source = generate(args.length > 0 ? Integer.parseInt(args[0]) : 8);
+        }
+
+        int statements = 0;
+        for (int i = 0; i < WARMUP; ++i) {
+            statements = parse(source).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            parse(source);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / RUNS;
+
+        double megabytes = source.length() / (1024.0 * 1024.0);
+        System.out.printf("%.1f MB, %d statements: %.1f ms per parse, %.1f MB/s%n",
+                megabytes, statements, seconds * 1000, megabytes / seconds);
+    }
+
+    private static List<Stmt> parse(String source) {
+        return new Parser(new Scanner(source).scanTokens()).parse();
+    }
+
+    // Expression-heavy code, since that's where most of the parser's time goes
+    static String generate(int megabytes) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < megabytes * 1024 * 1024; ++i) {
+            builder.append("func f").append(i).append("(a, b) {\n");
+            builder.append("    var c = a * ").append(random.nextInt(100)).append(" + b / 2 - (a - b);\n");
+            builder.append("    if (c >= 10 and a != b or !(c < 0)) print \"big\" + c;\n");
+            builder.append("    c = c > 5 ? g(a, b.x).y : -c;\n");
+            builder.append("    while (c < 100) c = c + 1;\n");
+            builder.append("    return c == nil;\n");
+            builder.append("}\n");
+        }
+        return builder.toString();
+    }
+}
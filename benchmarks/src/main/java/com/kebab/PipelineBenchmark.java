@@ -0,0 +1,112 @@
+package com.kebab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each stage of running a program, on the programs in {@code lox/}: scanning,
+ * parsing, which scans as it goes, resolving and interpreting the optimized tree the way
+ * {@code App} would. Lives in the interpreter's package, since the trees aren't public.
+ *
+ *     java -jar target/benchmarks.jar [PipelineBenchmark.interpret] [-p program=fib]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    @Param({"fib", "binary_trees", "method_dispatch", "string_concat", "closures", "while_loop"})
+    public String program;
+
+    private String source;
+    private List<Stmt> parsed;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = read(program);
+        parsed = parseSource();
+
+        // The programs print their results, which would only get in the way
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    static String read(String program) throws IOException {
+        try (InputStream in = PipelineBenchmark.class.getResourceAsStream("/lox/" + program + ".lox")) {
+            if (in == null) throw new IOException("No benchmark program " + program + ".");
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        // Tokens are scanned as they are asked for
+        TokenBuffer tokens = new Scanner(source).scanTokens();
+        int count = 0;
+        while (tokens.type(count) != TokenType.EOF) count++;
+        return count;
+    }
+
+    @Benchmark
+    public Object parse() {
+        return parseSource();
+    }
+
+    @Benchmark
+    public Object resolve() {
+        new Resolver().resolve(parsed);
+        return parsed;
+    }
+
+    @Benchmark
+    public void interpret(Program program) {
+        new Interpreter().interpret(program.statements);
+    }
+
+    /**
+     * A tree for each run to interpret, since the inline caches in a tree interpreted
+     * before would be full of the previous runs' classes.
+     */
+    @State(Scope.Thread)
+    public static class Program {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void setUp(PipelineBenchmark benchmark) {
+            List<Stmt> resolved = benchmark.parseSource();
+            new Resolver().resolve(resolved);
+            statements = new Optimizer().optimize(resolved);
+        }
+    }
+
+    private List<Stmt> parseSource() {
+        return new Parser(new Scanner(source).scanTokens()).parse();
+    }
+}
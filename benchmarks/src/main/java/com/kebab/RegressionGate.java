@@ -0,0 +1,412 @@
+package com.kebab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the programs in {@code lox/} through {@code App} and fails if any got slower, or
+ * allocates or holds on to more memory, than in a checked-in baseline. Each program runs
+ * repeatedly for a while to warm up, then for a few one-second iterations that measure
+ * runs per second, taking the median, bytes allocated per run, from the JVM's count of
+ * what the running thread allocated, and the peak of the heap that outlives collections.
+ *
+ * Where the JIT ends up differs from one JVM to the next, so the measuring is done in a
+ * few forked JVMs started with this one's options, and each measurement is the median of
+ * the forks'. Timings are still much noisier than memory, so they get a tolerance of
+ * their own, set from how far runs of an unchanged build strayed from its baseline: on a
+ * busy one-CPU machine, from 27% fewer to 20% more runs per second over six runs, so the
+ * default is 0.35. The memory measurements stayed within 0.2%.
+ *
+ * The results are written to a JSON file shaped like the baseline, so a run on a new
+ * machine or after a deliberate change can become the new baseline with {@code --update}.
+ * What survives a collection depends on the collector and the heap's size, so the results
+ * record the JVM options they were measured with, and the peak heap is only checked
+ * against a baseline measured with the same ones. The regression profile always starts
+ * the JVM the same way.
+ *
+ *     mvn -P regression verify [-Dforks=3] [-Dtolerance=0.35] [-Dmemory.tolerance=0.05] [-Dbaseline.update=true]
+ */
+public class RegressionGate {
+    private static final String[] PROGRAMS = {"fib", "binary_trees", "method_dispatch", "string_concat", "closures", "while_loop"};
+
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final int ITERATIONS = 5;
+    private static final int FORKS = 3;
+
+    // Keys of each program's results
+    private static final String OPS = "opsPerSecond";
+    private static final String ALLOCATED = "allocatedBytesPerOp";
+    private static final String ALLOCATION_RATE = "allocatedMBPerSecond";
+    private static final String PEAK_HEAP = "peakHeapBytes";
+    private static final String JVM_OPTIONS = "jvmOptions";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String engine = "interpreter";
+        int forks = FORKS;
+        double tolerance = 0.35;
+        double memoryTolerance = 0.05;
+        Path baseline = Paths.get("baseline.json");
+        Path results = Paths.get("target", "regression-results.json");
+        boolean update = false;
+        // What each fork is started with, to only measure and write the results
+        boolean measureOnly = false;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--forks=")) {
+                forks = Integer.parseInt(arg.substring("--forks=".length()));
+            } else if (arg.startsWith("--tolerance=")) {
+                tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+            } else if (arg.startsWith("--memory-tolerance=")) {
+                memoryTolerance = Double.parseDouble(arg.substring("--memory-tolerance=".length()));
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = Paths.get(arg.substring("--baseline=".length()));
+            } else if (arg.startsWith("--results=")) {
+                results = Paths.get(arg.substring("--results=".length()));
+            } else if (arg.equals("--update") || arg.equals("--update=true")) {
+                update = true;
+            } else if (arg.equals("--update=false")) {
+                update = false;
+            } else if (arg.equals("--measure-only")) {
+                measureOnly = true;
+            } else {
+                System.err.println("Usage: RegressionGate [--engine=name] [--forks=count] [--tolerance=fraction] [--memory-tolerance=fraction]"
+                        + " [--baseline=file] [--results=file] [--update]");
+                System.exit(64);
+            }
+        }
+
+        Map<String, Object> current = forks > 0 ? fork(forks, engine) : measure(engine);
+
+        if (results.getParent() != null) Files.createDirectories(results.getParent());
+        Files.write(results, Json.write(current).getBytes(StandardCharsets.UTF_8));
+        if (measureOnly) return;
+        System.out.println("Results written to " + results);
+
+        if (update) {
+            Files.write(baseline, Json.write(current).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Baseline written to " + baseline);
+            return;
+        }
+        if (!Files.exists(baseline)) {
+            System.err.println("No baseline at " + baseline + ", record one with --update.");
+            System.exit(1);
+        }
+        Map<String, Object> expected = Json.read(new String(Files.readAllBytes(baseline), StandardCharsets.UTF_8));
+        if (!compare(expected, current, tolerance, memoryTolerance)) {
+            System.exit(1);
+        }
+    }
+
+    // Measures every program in this JVM
+    private static Map<String, Object> measure(String engine) throws IOException {
+        Map<String, Object> measured = new LinkedHashMap<>();
+        for (String program : PROGRAMS) {
+            measured.put(program, measure(program, engine));
+        }
+        Map<String, Object> current = new LinkedHashMap<>();
+        current.put("engine", engine);
+        current.put(JVM_OPTIONS, jvmOptions());
+        current.put("benchmarks", measured);
+        return current;
+    }
+
+    /**
+     * Measures every program in each of a number of new JVMs, one after the other, and
+     * takes the median of each measurement across them.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> fork(int forks, String engine) throws IOException, InterruptedException {
+        List<Map<String, Object>> runs = new ArrayList<>();
+        for (int i = 0; i < forks; ++i) {
+            System.out.println("Fork " + (i + 1) + " of " + forks);
+            Path results = Files.createTempFile("lox-regression", ".json");
+            try {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.addAll(Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                        RegressionGate.class.getName(), "--engine=" + engine, "--forks=0",
+                        "--results=" + results, "--measure-only"));
+                int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Fork " + (i + 1) + " exited with " + exitCode + ".");
+                }
+                runs.add(Json.read(new String(Files.readAllBytes(results), StandardCharsets.UTF_8)));
+            } finally {
+                Files.delete(results);
+            }
+        }
+
+        Map<String, Object> measured = new LinkedHashMap<>();
+        for (String program : PROGRAMS) {
+            Map<String, Object> medians = new LinkedHashMap<>();
+            for (String key : ((Map<String, Object>) ((Map<String, Object>) runs.get(0).get("benchmarks")).get(program)).keySet()) {
+                double[] values = new double[forks];
+                for (int i = 0; i < forks; ++i) {
+                    Map<String, Object> benchmarks = (Map<String, Object>) runs.get(i).get("benchmarks");
+                    values[i] = (Double) ((Map<String, Object>) benchmarks.get(program)).get(key);
+                }
+                Arrays.sort(values);
+                medians.put(key, values[forks / 2]);
+            }
+            measured.put(program, medians);
+        }
+        Map<String, Object> current = new LinkedHashMap<>();
+        current.put("engine", engine);
+        current.put(JVM_OPTIONS, runs.get(0).get(JVM_OPTIONS));
+        current.put("benchmarks", measured);
+        System.out.println("Medians of " + forks + " forks");
+        for (Map.Entry<String, Object> program : measured.entrySet()) {
+            print(program.getKey(), (Map<String, Object>) program.getValue());
+        }
+        return current;
+    }
+
+    // Runs the program through App until it's warmed up, then measures it
+    private static Map<String, Object> measure(String program, String engine) throws IOException {
+        Path script = Files.createTempFile("lox-" + program, ".lox");
+        script.toFile().deleteOnExit();
+        Files.write(script, PipelineBenchmark.read(program).getBytes(StandardCharsets.UTF_8));
+        String[] args = {"--engine=" + engine, script.toString()};
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+
+        // The programs print their results, which would only get in the way
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        double[] rates = new double[ITERATIONS];
+        long runs = 0;
+        long elapsed = 0;
+        long allocated;
+        try {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < WARMUP_NANOS) {
+                App.main(args);
+            }
+
+            System.gc();
+            for (MemoryPoolMXBean pool : pools) {
+                pool.resetPeakUsage();
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                // At least one run an iteration, however long it takes
+                long iterationRuns = 0;
+                long iterationElapsed;
+                start = System.nanoTime();
+                do {
+                    App.main(args);
+                    iterationRuns++;
+                    iterationElapsed = System.nanoTime() - start;
+                } while (iterationElapsed < ITERATION_NANOS);
+
+                rates[i] = iterationRuns / (iterationElapsed / 1e9);
+                runs += iterationRuns;
+                elapsed += iterationElapsed;
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        } finally {
+            System.setOut(out);
+        }
+
+        // Eden always fills up before a collection, so only what survived one is counted
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden")) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        Arrays.sort(rates);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(OPS, rates[ITERATIONS / 2]);
+        result.put(ALLOCATED, (double) (allocated / runs));
+        result.put(ALLOCATION_RATE, allocated / (elapsed / 1e9) / (1024 * 1024));
+        result.put(PEAK_HEAP, (double) peakHeap);
+        print(program, result);
+        return result;
+    }
+
+    private static void print(String program, Map<String, Object> result) {
+        System.out.printf(Locale.ROOT, "%-16s %10.2f ops/s %14.0f B/op %10.1f MB/s %8.1f MB peak heap%n", program,
+                result.get(OPS), result.get(ALLOCATED), result.get(ALLOCATION_RATE),
+                (Double) result.get(PEAK_HEAP) / (1024.0 * 1024.0));
+    }
+
+    // The options this JVM was started with that size the heap or pick the collector
+    private static String jvmOptions() {
+        StringBuilder options = new StringBuilder();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!option.startsWith("-X")) continue;
+            if (options.length() > 0) options.append(' ');
+            options.append(option);
+        }
+        return options.toString();
+    }
+
+    /**
+     * Reports every measurement more than its tolerance worse than its baseline, returns
+     * false if there were any. The allocation rate isn't checked, since it goes up along
+     * with the runs per second, nor is the peak heap if the JVM options differ.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean compare(Map<String, Object> baseline, Map<String, Object> current, double tolerance,
+                           double memoryTolerance) {
+        if (!current.get("engine").equals(baseline.get("engine"))) {
+            System.err.println("The baseline is for the " + baseline.get("engine") + " engine, not " + current.get("engine") + ".");
+            return false;
+        }
+
+        boolean sameJvm = current.get(JVM_OPTIONS).equals(baseline.get(JVM_OPTIONS));
+        if (!sameJvm) {
+            System.out.println("The baseline was measured with JVM options \"" + baseline.get(JVM_OPTIONS)
+                    + "\", not \"" + current.get(JVM_OPTIONS) + "\", so the peak heap isn't compared.");
+        }
+
+        Map<String, Object> expected = (Map<String, Object>) baseline.get("benchmarks");
+        Map<String, Object> measured = (Map<String, Object>) current.get("benchmarks");
+        boolean passed = true;
+        for (Map.Entry<String, Object> program : measured.entrySet()) {
+            Map<String, Object> before = (Map<String, Object>) expected.get(program.getKey());
+            if (before == null) {
+                System.out.println(program.getKey() + ": not in the baseline");
+                continue;
+            }
+            Map<String, Object> after = (Map<String, Object>) program.getValue();
+            passed &= check(program.getKey(), OPS, true, before, after, tolerance);
+            passed &= check(program.getKey(), ALLOCATED, false, before, after, memoryTolerance);
+            if (sameJvm) passed &= check(program.getKey(), PEAK_HEAP, false, before, after, memoryTolerance);
+        }
+        System.out.println(passed ? "No regressions." : "Regressed by more than the tolerance.");
+        return passed;
+    }
+
+    private static boolean check(String program, String key, boolean higherIsBetter,
+                                 Map<String, Object> before, Map<String, Object> after, double tolerance) {
+        Double expected = (Double) before.get(key);
+        if (expected == null || expected == 0) return true;
+
+        double change = (Double) after.get(key) / expected - 1;
+        boolean regressed = higherIsBetter ? change < -tolerance : change > tolerance;
+        System.out.printf(Locale.ROOT, "%-16s %-22s %+7.1f%%%s%n", program, key, change * 100,
+                regressed ? "  REGRESSION" : "");
+        return !regressed;
+    }
+
+    /**
+     * Just enough JSON for the results: objects, strings and numbers, which are all read
+     * as doubles.
+     */
+    static class Json {
+        private final String text;
+        private int current = 0;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        static String write(Map<String, Object> object) {
+            StringBuilder json = new StringBuilder();
+            write(json, object, "");
+            return json.append('\n').toString();
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void write(StringBuilder json, Object value, String indent) {
+            if (value instanceof Map) {
+                json.append("{\n");
+                String separator = "";
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    json.append(separator).append(indent).append("  \"").append(entry.getKey()).append("\": ");
+                    write(json, entry.getValue(), indent + "  ");
+                    separator = ",\n";
+                }
+                json.append('\n').append(indent).append('}');
+            } else if (value instanceof Double) {
+                json.append(String.format(Locale.ROOT, "%.2f", value));
+            } else {
+                json.append('"').append(value).append('"');
+            }
+        }
+
+        static Map<String, Object> read(String text) {
+            Json json = new Json(text);
+            Object value = json.value();
+            if (!(value instanceof Map)) throw json.error("Expected an object");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> object = (Map<String, Object>) value;
+            return object;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (current == text.length()) throw error("Unexpected end");
+            char c = text.charAt(current);
+            if (c == '{') return object();
+            if (c == '"') return string();
+
+            int start = current;
+            while (current < text.length() && "+-.eE0123456789".indexOf(text.charAt(current)) >= 0) current++;
+            if (start == current) throw error("Unexpected '" + c + "'");
+            return Double.parseDouble(text.substring(start, current));
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            current++;
+            skipWhitespace();
+            if (match('}')) return object;
+            do {
+                skipWhitespace();
+                if (current == text.length() || text.charAt(current) != '"') throw error("Expected a key");
+                String key = string();
+                skipWhitespace();
+                if (!match(':')) throw error("Expected ':'");
+                object.put(key, value());
+                skipWhitespace();
+            } while (match(','));
+            if (!match('}')) throw error("Expected '}'");
+            return object;
+        }
+
+        // Keys and values the results have need no escapes
+        private String string() {
+            int end = text.indexOf('"', current + 1);
+            if (end < 0) throw error("Unterminated string");
+            String string = text.substring(current + 1, end);
+            current = end + 1;
+            return string;
+        }
+
+        private boolean match(char expected) {
+            if (current == text.length() || text.charAt(current) != expected) return false;
+            current++;
+            return true;
+        }
+
+        private void skipWhitespace() {
+            while (current < text.length() && Character.isWhitespace(text.charAt(current))) current++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at character " + current + " of the JSON.");
+        }
+    }
+}
@@ -3,28 +3,105 @@ package com.kebab;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class App {
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static Engine engine = new Interpreter();
+    private static boolean optimize = true;
+    private static boolean dumpAst = false;
+    private static boolean lazyParse = false;
+    private static AstCache cache = null;
+
+    // The most top-level declarations handed to the engine at once
+    private static final int MAX_PENDING = 256;
 
 	public static void main( String[] args ) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        boolean compile = args.length > 0 && args[0].equals("compile");
+        String script = null;
+        String jar = null;
+        for (String arg : compile ? Arrays.copyOfRange(args, 1, args.length) : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = createEngine(arg.substring("--engine=".length()));
+            } else if (arg.equals("--no-optimize")) {
+                optimize = false;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--lazy-parse")) {
+                lazyParse = true;
+            } else if (arg.startsWith("--cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (script == null) {
+                script = arg;
+            } else if (compile && jar == null) {
+                jar = arg;
+            } else {
+                usage();
+            }
+        }
+
+        // The other engines compile every body before running any of it
+        if (lazyParse && (compile || !(engine instanceof Interpreter))) {
+            System.err.println("--lazy-parse only works with the interpreter engine.");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+
+        if (compile) {
+            if (script == null) usage();
+            if (isNativeImage()) unavailable("Compiling");
+            compileFile(script, jar != null ? jar : script.replaceFirst("(\\.lox)?$", ".jar"));
+        } else if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
+    static Engine createEngine(String name) {
+        switch (name) {
+            case "interpreter":
+                return new Interpreter();
+            case "vm":
+                return new VirtualMachine();
+            case "closure":
+                return new ClosureEngine(false);
+            case "specializing":
+                return new ClosureEngine(true);
+            case "jvm":
+                if (isNativeImage()) unavailable("The jvm engine");
+                return new JvmEngine();
+            default:
+                usage();
+                return null;
+        }
+    }
+
+    // A native image can't generate classes and load them, which the jvm engine and compiling do
+    private static boolean isNativeImage() {
+        return System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+    }
+
+    private static void unavailable(String feature) {
+        System.err.println(feature + " isn't available in a native image, run the jar for it.");
+        System.exit(64);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=interpreter|vm|closure|specializing|jvm] [--no-optimize] [--dump-ast] [--lazy-parse] [--cache=dir] [script]");
+        System.out.println("       jlox compile [--no-optimize] [--dump-ast] script [jar]");
+        System.exit(64);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -33,31 +110,148 @@ public class App {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(new Scanner(line), null);
             hadError = false;
+            hadRuntimeError = false;
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Scripts are UTF-8, decoded from the mapped file as the Scanner gets to them
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (cache != null) {
+                runCached(bytes);
+            } else {
+                run(new Scanner(bytes, StandardCharsets.UTF_8), null);
+            }
+        }
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens); 
-        List<Stmt> statements = parser.parse();
+    /**
+     * Compiles the script into a jar that runs it on its own, without the front end. Its
+     * top-level statements are parsed and resolved as with running it, and compiled a part
+     * of at most {@link #MAX_PENDING} at a time.
+     */
+    private static void compileFile(String path, String jar) throws IOException {
+        JarCompiler compiler = new JarCompiler();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            Scanner scanner = new Scanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    StandardCharsets.UTF_8);
+            Parser parser = new Parser(scanner.scanTokens());
+            Resolver resolver = new Resolver();
+            Optimizer optimizer = optimize ? new Optimizer() : null;
+            List<Stmt> part = new ArrayList<>();
+
+            for (Stmt statement = parser.next(); statement != null; statement = parser.next()) {
+                if (hadError) continue;
+                resolver.resolve(Collections.singletonList(statement));
+                if (hadError) continue;
+
+                part.add(statement);
+                if (part.size() < MAX_PENDING) continue;
+                compilePart(compiler, part, optimizer);
+                part.clear();
+            }
+            if (!hadError) compilePart(compiler, part, optimizer);
+        } catch (JvmCompiler.Unsupported e) {
+            System.err.println("Can't compile " + path + ": " + e.getMessage());
+            System.exit(65);
+        }
+        if (hadError) System.exit(65);
+
+        compiler.write(Paths.get(jar));
+    }
+
+    private static void compilePart(JarCompiler compiler, List<Stmt> statements, Optimizer optimizer) {
+        if (optimizer != null) statements = optimizer.optimize(statements);
+        if (dumpAst) System.err.print(new AstPrinter().print(statements));
+        if (!compiler.add(statements)) hadError = true;
+    }
+
+    // Runs the script's cached program if there is one, or caches it while running it
+    private static void runCached(ByteBuffer bytes) throws IOException {
+        String key = AstCache.key(bytes, lazyParse);
+        AstReader reader = cache.open(key);
+        if (reader != null) {
+            run(reader);
+            return;
+        }
 
-        if (hadError) return;
+        AstWriter writer = cache.create(key);
+        run(new Scanner(bytes, StandardCharsets.UTF_8), writer);
+        if (writer == null) return;
+        if (hadError || hadRuntimeError) {
+            writer.abandon();
+        } else {
+            writer.commit();
+        }
+    }
+
+    /**
+     * Runs top-level declarations as they are parsed and resolved. Function, class and
+     * variable declarations are held back until a statement that can show its effect, so
+     * a run of them is handed to the engine together. After a syntax or resolution error
+     * nothing more runs or is resolved, but the rest is still parsed to report its syntax
+     * errors, and a runtime error stops everything.
+     *
+     * With --lazy-parse the bodies of top-level functions and methods are only parsed when
+     * first called, so errors in them are reported then, and not at all if they never are.
+     * Each resolved statement is also written to the cache if one is given.
+     */
+    private static void run(Scanner scanner, AstWriter cached) {
+        Parser parser = new Parser(scanner.scanTokens(), lazyParse);
+        Resolver resolver = new Resolver();
+        Optimizer optimizer = optimize ? new Optimizer() : null;
+        List<Stmt> pending = new ArrayList<>();
+
+        for (Stmt statement = parser.next(); statement != null; statement = parser.next()) {
+            // A statement with syntax errors has holes the Resolver can't walk
+            if (hadError) continue;
+            resolver.resolve(Collections.singletonList(statement));
+            if (hadError) continue;
+
+            if (cached != null) cached.write(statement);
+            if (!queue(statement, pending, optimizer)) return;
+        }
+        if (!hadError) execute(pending, optimizer);
+        if (optimizer != null && dumpAst) System.err.println(optimizer.statistics());
+    }
+
+    // Runs a cached program the same way, it's already resolved and has no errors
+    private static void run(AstReader reader) {
+        Optimizer optimizer = optimize ? new Optimizer() : null;
+        List<Stmt> pending = new ArrayList<>();
+
+        for (Stmt statement = reader.next(); statement != null; statement = reader.next()) {
+            if (!queue(statement, pending, optimizer)) return;
+        }
+        execute(pending, optimizer);
+        if (optimizer != null && dumpAst) System.err.println(optimizer.statistics());
+    }
+
+    // Holds back a declaration or runs everything held back, returns false after a runtime error
+    private static boolean queue(Stmt statement, List<Stmt> pending, Optimizer optimizer) {
+        pending.add(statement);
+        if (isDeclaration(statement) && pending.size() < MAX_PENDING) return true;
+
+        execute(pending, optimizer);
+        pending.clear();
+        return !hadRuntimeError;
+    }
+
+    private static boolean isDeclaration(Stmt statement) {
+        return statement instanceof Stmt.Function || statement instanceof Stmt.Class
+                || statement instanceof Stmt.Var;
+    }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        if (hadError) return;
+    private static void execute(List<Stmt> statements, Optimizer optimizer) {
+        if (optimizer != null) statements = optimizer.optimize(statements);
+        if (dumpAst) System.err.print(new AstPrinter().print(statements));
 
-        interpreter.interpret(statements);
+        engine.interpret(statements);
     }
 
     public static void error(Token token, String message) {
@@ -0,0 +1,139 @@
+package com.kebab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * A directory of resolved programs, so running a script that hasn't changed skips
+ * scanning, parsing and resolving it. Each is stored under a hash of the script, written
+ * by an {@link AstWriter} the first time the script runs and read back by an
+ * {@link AstReader} after that. A cached program only replaces a script that ran through
+ * without errors, so reading one never has errors to report.
+ */
+class AstCache {
+    // "LOXC", then the version of the format, changed whenever the tree or the format does
+    static final int MAGIC = 0x4c4f5843;
+    static final int VERSION = 3;
+    // The length of what comes before it and its CRC-32, at the end of the file
+    static final int TRAILER = 8;
+
+    // Node tags, 0 for a missing node
+    static final byte ASSIGN = 1;
+    static final byte BINARY = 2;
+    static final byte TERNARY = 3;
+    static final byte CALL = 4;
+    static final byte GET = 5;
+    static final byte GROUPING = 6;
+    static final byte LAMBDA = 7;
+    static final byte LITERAL = 8;
+    static final byte LOGICAL = 9;
+    static final byte SET = 10;
+    static final byte SUPER = 11;
+    static final byte THIS = 12;
+    static final byte UNARY = 13;
+    static final byte VARIABLE = 14;
+
+    static final byte BLOCK = 1;
+    static final byte BREAK = 2;
+    static final byte CLASS = 3;
+    static final byte EXPRESSION = 4;
+    static final byte FUNCTION = 5;
+    static final byte LAZY_FUNCTION = 6;
+    static final byte IF = 7;
+    static final byte PRINT = 8;
+    static final byte RETURN = 9;
+    static final byte VAR = 10;
+    static final byte WHILE = 11;
+
+    // Literal values
+    static final byte NIL = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+    static final byte NUMBER = 3;
+    static final byte STRING = 4;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the key a script is cached under, a hash of its bytes and of whether its
+     * function bodies are parsed lazily, since that changes the tree.
+     */
+    static String key(ByteBuffer script, boolean lazy) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(script.duplicate());
+        digest.update((byte) (lazy ? 1 : 0));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a reader for the program cached under the key, or null if there is none
+     * this version can read. A file that was cut short or changed since it was written
+     * is deleted, so the script is cached again.
+     */
+    AstReader open(String key) throws IOException {
+        Path file = path(key);
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.remaining() < 8 || bytes.getInt() != MAGIC || bytes.getInt() != VERSION) return null;
+
+        if (!intact(bytes)) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        bytes.limit(bytes.capacity() - TRAILER);
+        return new AstReader(bytes);
+    }
+
+    // Checks the trailer against what comes before it
+    private static boolean intact(ByteBuffer bytes) {
+        int length = bytes.capacity() - TRAILER;
+        if (length < 8 || bytes.getInt(length) != length) return false;
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.duplicate().position(0).limit(length));
+        return bytes.getInt(length + 4) == (int) checksum.getValue();
+    }
+
+    /**
+     * Returns a writer that caches a program under the key once it's committed, or null if
+     * the directory can't be written to.
+     */
+    AstWriter create(String key) {
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, key, ".tmp");
+            return new AstWriter(file, path(key));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key + ".ast");
+    }
+}
@@ -0,0 +1,217 @@
+package com.kebab;
+
+import java.util.List;
+
+/**
+ * Prints a program as nested s-expressions, one statement per line, for {@code --dump-ast}.
+ */
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+    private int indent = 0;
+
+    public String print(List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        for (Stmt statement : statements) {
+            builder.append(print(statement)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + expr.name.lexeme, expr.value);
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitTernaryExpr(Expr.Ternary expr) {
+        return parenthesize("?:", expr.condition, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder builder = new StringBuilder("(call ").append(print(expr.callee));
+        for (Expr argument : expr.arguments) {
+            builder.append(' ').append(print(argument));
+        }
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize(". " + expr.name.lexeme, expr.object);
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return parenthesize("group", expr.expression);
+    }
+
+    @Override
+    public String visitLambdaExpr(Expr.Lambda expr) {
+        return function("lambda", expr.params, expr.body);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
+        return Interpreter.stringify(expr.value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize(".= " + expr.name.lexeme, expr.object, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "(super " + expr.method.lexeme + ")";
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        return parenthesize(expr.operator.lexeme, expr.right);
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return "(block" + body(stmt.statements) + ")";
+    }
+
+    @Override
+    public String visitBreakStmt(Stmt.Break stmt) {
+        return "(break)";
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) builder.append(" extends ").append(stmt.superclass.name.lexeme);
+        indent++;
+        for (Stmt.Function method : stmt.methods) {
+            builder.append('\n').append(margin()).append(print(method));
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            builder.append('\n').append(margin()).append("static ").append(print(method));
+        }
+        indent--;
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.body instanceof LazyBody && !((LazyBody) stmt.body).isLoaded()) {
+            // Not parsed yet
+            return signature("func " + stmt.name.lexeme, stmt.params).append(" ...)").toString();
+        }
+        return function("func " + stmt.name.lexeme, stmt.params, stmt.body);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        StringBuilder builder = new StringBuilder("(if ").append(print(stmt.condition));
+        indent++;
+        builder.append('\n').append(margin()).append(print(stmt.thenBranch));
+        if (stmt.elseBranch != null) {
+            builder.append('\n').append(margin()).append(print(stmt.elseBranch));
+        }
+        indent--;
+        return builder.append(')').toString();
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        StringBuilder builder = new StringBuilder("(while ").append(print(stmt.condition));
+        indent++;
+        builder.append('\n').append(margin()).append(print(stmt.body));
+        indent--;
+        return builder.append(')').toString();
+    }
+
+    private String function(String name, List<Token> params, List<Stmt> body) {
+        return signature(name, params).append(body(body)).append(')').toString();
+    }
+
+    private StringBuilder signature(String name, List<Token> params) {
+        StringBuilder builder = new StringBuilder("(").append(name).append(" (");
+        for (int i = 0; i < params.size(); ++i) {
+            if (i > 0) builder.append(' ');
+            builder.append(params.get(i).lexeme);
+        }
+        return builder.append(')');
+    }
+
+    private String body(List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        indent++;
+        for (Stmt statement : statements) {
+            builder.append('\n').append(margin()).append(print(statement));
+        }
+        indent--;
+        return builder.toString();
+    }
+
+    private String parenthesize(String name, Expr... exprs) {
+        StringBuilder builder = new StringBuilder("(").append(name);
+        for (Expr expr : exprs) {
+            builder.append(' ').append(print(expr));
+        }
+        return builder.append(')').toString();
+    }
+
+    private String margin() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < indent; ++i) {
+            builder.append("  ");
+        }
+        return builder.toString();
+    }
+
+    private String print(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+}
@@ -0,0 +1,231 @@
+package com.kebab;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back the statements an {@link AstWriter} wrote to an {@link AstCache}, already
+ * resolved, one top-level statement at a time.
+ */
+class AstReader {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final Resolver.FunctionType[] FUNCTION_TYPES = Resolver.FunctionType.values();
+    private static final Resolver.ClassType[] CLASS_TYPES = Resolver.ClassType.values();
+
+    private final ByteBuffer bytes;
+    // Names by the index later uses refer to them with
+    private final List<String> strings = new ArrayList<>();
+
+    AstReader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the next top-level statement, or null after the last one.
+     */
+    public Stmt next() {
+        if (!bytes.hasRemaining()) return null;
+        return readStmt();
+    }
+
+    private Expr readExpr() {
+        byte tag = bytes.get();
+        switch (tag) {
+            case 0:
+                return null;
+            case AstCache.ASSIGN: {
+                Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+                expr.depth = readSlot();
+                expr.slot = readSlot();
+                return expr;
+            }
+            case AstCache.BINARY:
+                return new Expr.Binary(readExpr(), readToken(), readExpr());
+            case AstCache.TERNARY:
+                return new Expr.Ternary(readExpr(), readExpr(), readExpr());
+            case AstCache.CALL: {
+                Expr callee = readExpr();
+                Token paren = readToken();
+                int count = readInt();
+                List<Expr> arguments = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i) {
+                    arguments.add(readExpr());
+                }
+                return new Expr.Call(callee, paren, arguments);
+            }
+            case AstCache.GET:
+                return new Expr.Get(readExpr(), readToken());
+            case AstCache.GROUPING:
+                return new Expr.Grouping(readExpr());
+            case AstCache.LAMBDA: {
+                Expr.Lambda expr = new Expr.Lambda(readTokens(), readStatements());
+                expr.frameSize = readInt();
+                expr.frameCaptured = bytes.get() == 1;
+                return expr;
+            }
+            case AstCache.LITERAL:
+                return new Expr.Literal(readValue());
+            case AstCache.LOGICAL:
+                return new Expr.Logical(readExpr(), readToken(), readExpr());
+            case AstCache.SET:
+                return new Expr.Set(readExpr(), readToken(), readExpr());
+            case AstCache.SUPER: {
+                Expr.Super expr = new Expr.Super(readToken(), readToken());
+                expr.depth = readSlot();
+                expr.thisDepth = readSlot();
+                return expr;
+            }
+            case AstCache.THIS: {
+                Expr.This expr = new Expr.This(readToken());
+                expr.depth = readSlot();
+                expr.slot = readSlot();
+                return expr;
+            }
+            case AstCache.UNARY:
+                return new Expr.Unary(readToken(), readExpr());
+            case AstCache.VARIABLE: {
+                Expr.Variable expr = new Expr.Variable(readToken());
+                expr.depth = readSlot();
+                expr.slot = readSlot();
+                return expr;
+            }
+            default:
+                throw new IllegalStateException("Unknown expression tag " + tag + " in cached program.");
+        }
+    }
+
+    private Stmt readStmt() {
+        byte tag = bytes.get();
+        switch (tag) {
+            case 0:
+                return null;
+            case AstCache.BLOCK: {
+                Stmt.Block stmt = new Stmt.Block(readStatements());
+                stmt.frameSize = readInt();
+                stmt.frameCaptured = bytes.get() == 1;
+                return stmt;
+            }
+            case AstCache.BREAK:
+                return new Stmt.Break(readToken());
+            case AstCache.CLASS: {
+                Token name = readToken();
+                List<Stmt.Function> methods = readFunctions();
+                List<Stmt.Function> staticMethods = readFunctions();
+                Stmt.Class stmt = new Stmt.Class(name, methods, staticMethods, (Expr.Variable) readExpr());
+                stmt.slot = readSlot();
+                return stmt;
+            }
+            case AstCache.EXPRESSION:
+                return new Stmt.Expression(readExpr());
+            case AstCache.FUNCTION: {
+                Stmt.Function stmt = new Stmt.Function(readToken(), readTokens(), readStatements());
+                stmt.frameSize = readInt();
+                stmt.frameCaptured = bytes.get() == 1;
+                stmt.slot = readSlot();
+                return stmt;
+            }
+            case AstCache.LAZY_FUNCTION: {
+                Token name = readToken();
+                List<Token> params = readTokens();
+                LazyBody body = new LazyBody(readString(), readInt());
+                Stmt.Function stmt = new Stmt.Function(name, params, body);
+                body.defer(stmt, FUNCTION_TYPES[readInt()], CLASS_TYPES[readInt()]);
+                stmt.slot = readSlot();
+                return stmt;
+            }
+            case AstCache.IF:
+                return new Stmt.If(readExpr(), readStmt(), readStmt());
+            case AstCache.PRINT:
+                return new Stmt.Print(readExpr());
+            case AstCache.RETURN:
+                return new Stmt.Return(readToken(), readExpr());
+            case AstCache.VAR: {
+                Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+                stmt.slot = readSlot();
+                return stmt;
+            }
+            case AstCache.WHILE:
+                return new Stmt.While(readExpr(), readStmt());
+            default:
+                throw new IllegalStateException("Unknown statement tag " + tag + " in cached program.");
+        }
+    }
+
+    private List<Stmt> readStatements() {
+        int count = readInt();
+        List<Stmt> statements = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            statements.add(readStmt());
+        }
+        return statements;
+    }
+
+    private List<Stmt.Function> readFunctions() {
+        int count = readInt();
+        List<Stmt.Function> functions = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            functions.add((Stmt.Function) readStmt());
+        }
+        return functions;
+    }
+
+    private List<Token> readTokens() {
+        int count = readInt();
+        List<Token> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            tokens.add(readToken());
+        }
+        return tokens;
+    }
+
+    private Token readToken() {
+        TokenType type = TYPES[bytes.get()];
+        String lexeme = type.lexeme != null ? type.lexeme : readName();
+        return new Token(type, lexeme, null, readInt());
+    }
+
+    private String readName() {
+        int index = readInt();
+        if (index < strings.size()) return strings.get(index);
+
+        String name = readString();
+        strings.add(name);
+        return name;
+    }
+
+    private Object readValue() {
+        byte type = bytes.get();
+        switch (type) {
+            case AstCache.NIL: return null;
+            case AstCache.FALSE: return false;
+            case AstCache.TRUE: return true;
+            case AstCache.NUMBER: return bytes.getDouble();
+            case AstCache.STRING: return readString();
+            default:
+                throw new IllegalStateException("Unknown literal type " + type + " in cached program.");
+        }
+    }
+
+    private String readString() {
+        int length = readInt();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) readInt();
+        }
+        return new String(chars);
+    }
+
+    private int readSlot() {
+        return readInt() - 1;
+    }
+
+    private int readInt() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.kebab;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes resolved top-level statements to a file for an {@link AstCache}, one at a time
+ * as they are resolved, along with what the Resolver filled in. Numbers are written as
+ * variable-length integers and every name only once, later uses referring back to it.
+ * The file only takes the place of the cached program when committed, ending in its
+ * length and a checksum, and a writer that fails to write just stops, so the run it
+ * caches goes on regardless.
+ */
+class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Path file;
+    private final Path target;
+    private OutputStream out;
+    // Of everything written so far, for the trailer
+    private final CRC32 checksum = new CRC32();
+    private long length = 0;
+
+    // A statement is encoded here before it is written out
+    private byte[] buffer = new byte[1024];
+    private int size = 0;
+    // Names and other lexemes already written, by the index they are referred to with
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    AstWriter(Path file, Path target) throws IOException {
+        this.file = file;
+        this.target = target;
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+
+        writeFixed(AstCache.MAGIC);
+        writeFixed(AstCache.VERSION);
+        flush();
+    }
+
+    public void write(Stmt statement) {
+        if (out == null) return;
+        write(statement, true);
+        flush();
+    }
+
+    /**
+     * Makes what was written the cached program, or just deletes it if writing failed.
+     */
+    public void commit() {
+        if (out == null) return;
+        writeFixed((int) length);
+        writeFixed((int) checksum.getValue());
+        try {
+            out.write(buffer, 0, size);
+        } catch (IOException e) {
+            abandon();
+            return;
+        }
+        if (!close()) return;
+        try {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            abandon();
+        }
+    }
+
+    public void abandon() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Only a temporary file left behind
+        }
+    }
+
+    // Returns false if the file wasn't written in full
+    private boolean close() {
+        if (out == null) return false;
+        try {
+            out.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            out = null;
+        }
+    }
+
+    private void flush() {
+        try {
+            out.write(buffer, 0, size);
+            checksum.update(buffer, 0, size);
+            length += size;
+        } catch (IOException e) {
+            abandon();
+        }
+        size = 0;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        writeByte(AstCache.ASSIGN);
+        write(expr.name);
+        write(expr.value);
+        writeSlot(expr.depth);
+        writeSlot(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        writeByte(AstCache.BINARY);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        writeByte(AstCache.TERNARY);
+        write(expr.condition);
+        write(expr.left);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        writeByte(AstCache.CALL);
+        write(expr.callee);
+        write(expr.paren);
+        writeInt(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            write(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        writeByte(AstCache.GET);
+        write(expr.object);
+        write(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        writeByte(AstCache.GROUPING);
+        write(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        writeByte(AstCache.LAMBDA);
+        writeTokens(expr.params);
+        writeStatements(expr.body);
+        writeInt(expr.frameSize);
+        writeByte(expr.frameCaptured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        writeByte(AstCache.LITERAL);
+        Object value = expr.value;
+        if (value == null) {
+            writeByte(AstCache.NIL);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? AstCache.TRUE : AstCache.FALSE);
+        } else if (value instanceof Double) {
+            writeByte(AstCache.NUMBER);
+            long bits = Double.doubleToRawLongBits((Double) value);
+            writeFixed((int) (bits >>> 32));
+            writeFixed((int) bits);
+        } else {
+            writeByte(AstCache.STRING);
+            writeString((String) value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        writeByte(AstCache.LOGICAL);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        writeByte(AstCache.SET);
+        write(expr.object);
+        write(expr.name);
+        write(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        writeByte(AstCache.SUPER);
+        write(expr.keyword);
+        write(expr.method);
+        writeSlot(expr.depth);
+        writeSlot(expr.thisDepth);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        writeByte(AstCache.THIS);
+        write(expr.keyword);
+        writeSlot(expr.depth);
+        writeSlot(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        writeByte(AstCache.UNARY);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        writeByte(AstCache.VARIABLE);
+        write(expr.name);
+        writeSlot(expr.depth);
+        writeSlot(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        writeByte(AstCache.BLOCK);
+        writeStatements(stmt.statements);
+        writeInt(stmt.frameSize);
+        writeByte(stmt.frameCaptured ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        writeByte(AstCache.BREAK);
+        write(stmt.token);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        writeByte(AstCache.CLASS);
+        write(stmt.name);
+        writeInt(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) {
+            write(method, true);
+        }
+        writeInt(stmt.staticMethods.size());
+        for (Stmt.Function staticMethod : stmt.staticMethods) {
+            write(staticMethod, true);
+        }
+        write(stmt.superclass);
+        writeSlot(stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        writeByte(AstCache.EXPRESSION);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.body instanceof LazyBody) {
+            // Kept as source along with where the Resolver found it
+            LazyBody body = (LazyBody) stmt.body;
+            writeByte(AstCache.LAZY_FUNCTION);
+            write(stmt.name);
+            writeTokens(stmt.params);
+            writeString(body.source);
+            writeInt(body.line);
+            writeInt(body.type.ordinal());
+            writeInt(body.enclosingClass.ordinal());
+        } else {
+            writeByte(AstCache.FUNCTION);
+            write(stmt.name);
+            writeTokens(stmt.params);
+            writeStatements(stmt.body);
+            writeInt(stmt.frameSize);
+            writeByte(stmt.frameCaptured ? 1 : 0);
+        }
+        writeSlot(stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        writeByte(AstCache.IF);
+        write(stmt.condition);
+        write(stmt.thenBranch, false);
+        write(stmt.elseBranch, false);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        writeByte(AstCache.PRINT);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        writeByte(AstCache.RETURN);
+        write(stmt.keyword);
+        write(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        writeByte(AstCache.VAR);
+        write(stmt.name);
+        write(stmt.initializer);
+        writeSlot(stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        writeByte(AstCache.WHILE);
+        write(stmt.condition);
+        write(stmt.body, false);
+        return null;
+    }
+
+    private void write(Expr expr) {
+        if (expr == null) {
+            writeByte(0);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void write(Stmt stmt, boolean required) {
+        if (stmt == null) {
+            if (required) throw new IllegalArgumentException("Can't cache a program with syntax errors.");
+            writeByte(0);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void writeStatements(List<Stmt> statements) {
+        writeInt(statements.size());
+        for (Stmt statement : statements) {
+            write(statement, true);
+        }
+    }
+
+    private void writeTokens(List<Token> tokens) {
+        writeInt(tokens.size());
+        for (Token token : tokens) {
+            write(token);
+        }
+    }
+
+    // The lexeme is only written for tokens not always spelled the same, the literal never is
+    private void write(Token token) {
+        writeByte(token.type.ordinal());
+        if (token.type.lexeme == null) writeName(token.lexeme);
+        writeInt(token.line);
+    }
+
+    private void writeName(String name) {
+        Integer index = strings.get(name);
+        if (index != null) {
+            writeInt(index);
+            return;
+        }
+        writeInt(strings.size());
+        strings.put(name, strings.size());
+        writeString(name);
+    }
+
+    // Chars as variable-length integers, so any string comes back exactly as it was
+    private void writeString(String string) {
+        writeInt(string.length());
+        for (int i = 0; i < string.length(); ++i) {
+            writeInt(string.charAt(i));
+        }
+    }
+
+    // Depths and slots, which are -1 for globals
+    private void writeSlot(int slot) {
+        writeInt(slot + 1);
+    }
+
+    // Seven bits at a time, the high bit set on all but the last byte
+    private void writeInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private void writeFixed(int value) {
+        writeByte(value >>> 24);
+        writeByte(value >>> 16);
+        writeByte(value >>> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int value) {
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, 2 * size);
+        buffer[size++] = (byte) value;
+    }
+}
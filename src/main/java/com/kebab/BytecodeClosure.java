@@ -0,0 +1,46 @@
+package com.kebab;
+
+public class BytecodeClosure implements LoxMethod {
+    final BytecodeFunction function;
+    final Environment closure;
+    // Set on a method bound by bind()
+    final LoxInstance receiver;
+    private final VirtualMachine vm;
+
+    BytecodeClosure(BytecodeFunction function, Environment closure, VirtualMachine vm) {
+        this(function, closure, null, vm);
+    }
+
+    private BytecodeClosure(BytecodeFunction function, Environment closure, LoxInstance receiver,
+            VirtualMachine vm) {
+        this.function = function;
+        this.closure = closure;
+        this.receiver = receiver;
+        this.vm = vm;
+    }
+
+    @Override
+    public int arity() {
+        return function.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return vm.invoke(this, receiver, arguments);
+    }
+
+    @Override
+    public Object callMethod(LoxInstance receiver, Interpreter interpreter, Object[] arguments) {
+        return vm.invoke(this, receiver, arguments);
+    }
+
+    @Override
+    public BytecodeClosure bind(LoxInstance instance) {
+        return new BytecodeClosure(function, closure, instance, vm);
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,594 @@
+package com.kebab;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Compiles a resolved program into {@link Chunk}s for the {@link VirtualMachine}.
+ * Locals live in stack slots of their call, except those in frames a closure captures:
+ * these keep the (depth, slot) layout the Resolver gave them in {@link Environment}s,
+ * which closures capture exactly like they do in the Interpreter.
+ */
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static class Loop {
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(int scopeDepth) {
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    /**
+     * A frame the Resolver laid out, either an Environment or stack slots of the function
+     * it's in, from the given one on.
+     */
+    private static class Frame {
+        final boolean captured;
+        final int offset;
+
+        Frame(boolean captured, int offset) {
+            this.captured = captured;
+            this.offset = offset;
+        }
+    }
+
+    private BytecodeFunction function;
+    // The frames around the code being compiled, the innermost last
+    private final List<Frame> frames = new ArrayList<>();
+    // First stack slot of the function not taken by a frame
+    private int localsTop = 0;
+    private Stack<Loop> loops = new Stack<>();
+    // Number of ENTER_SCOPEs in effect at the current point of the function
+    private int scopeDepth = 0;
+    private int stackDepth = 0;
+    private int line = 1;
+    private boolean hadError = false;
+
+    /**
+     * Returns the top level script function, or null if the program can't be compiled.
+     */
+    public BytecodeFunction compile(List<Stmt> statements) {
+        function = new BytecodeFunction("script", 0, 0, false, false, false);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+
+        if (hadError) return null;
+        return function;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        if (expr.depth >= 0) {
+            emitLocal(OpCode.SET_LOCAL, OpCode.SET_CAPTURED, expr.depth, expr.slot);
+        } else {
+            emit(OpCode.SET_GLOBAL, constant(expr.name), -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            emit(OpCode.POP);
+            compile(expr.right);
+            return null;
+        }
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case PLUS: emit(OpCode.ADD); break;
+            default:
+                // Unreachable
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.left);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        Expr.Get get = expr.callee instanceof Expr.Get ? (Expr.Get) expr.callee : null;
+        compile(get != null ? get.object : expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        if (get != null) {
+            emit(OpCode.INVOKE, constant(get.name), constant(new PropertyCache()), expr.arguments.size());
+        } else {
+            emit(OpCode.CALL, expr.arguments.size());
+        }
+        stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emit(OpCode.GET_PROPERTY, constant(expr.name), constant(new PropertyCache()));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        BytecodeFunction lambda = compileFunction("lambda", expr.params, expr.body, expr.frameSize,
+                expr.frameCaptured, false, false);
+        emit(OpCode.CLOSURE, constant(lambda));
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, constant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+        int endJump = emitJump(expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emit(OpCode.SET_PROPERTY, constant(expr.name), constant(new PropertyCache()));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        emitLocal(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, expr.thisDepth, 0);
+        emit(OpCode.GET_SUPER, capturedDepth(expr.depth), constant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        if (expr.depth >= 0) {
+            emitLocal(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, expr.depth, expr.slot);
+        } else {
+            emit(OpCode.GET_GLOBAL, constant(expr.keyword), -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.MINUS) {
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        if (expr.depth >= 0) {
+            emitLocal(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, expr.depth, expr.slot);
+        } else {
+            emit(OpCode.GET_GLOBAL, constant(expr.name), -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        if (!stmt.frameCaptured) {
+            // Only a top level block is a frame of its own without being captured
+            frames.add(new Frame(false, localsTop));
+            localsTop += stmt.frameSize;
+            function.localCount = Math.max(function.localCount, localsTop);
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            localsTop -= stmt.frameSize;
+            frames.remove(frames.size() - 1);
+            return null;
+        }
+
+        emit(OpCode.ENTER_SCOPE, stmt.frameSize);
+        frames.add(new Frame(true, 0));
+        scopeDepth++;
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        scopeDepth--;
+        frames.remove(frames.size() - 1);
+        emit(OpCode.EXIT_SCOPE);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.token.line;
+        if (loops.isEmpty()) {
+            App.report(line, "", "'break' must be used inside a loop.");
+            hadError = true;
+            return null;
+        }
+
+        Loop loop = loops.peek();
+        for (int i = loop.scopeDepth; i < scopeDepth; ++i) {
+            emit(OpCode.EXIT_SCOPE);
+        }
+        loop.breaks.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        boolean hasSuperclass = stmt.superclass != null;
+        if (hasSuperclass) {
+            compile(stmt.superclass);
+            emit(OpCode.CHECK_SUPERCLASS, constant(stmt.superclass.name));
+        }
+
+        emit(OpCode.NIL);
+        emitDefine(stmt.slot, stmt.name);
+
+        if (hasSuperclass) {
+            // Methods find 'super' in an environment of its own, whether they use it or not
+            emit(OpCode.DUP);
+            emit(OpCode.ENTER_SCOPE, 1);
+            emit(OpCode.DEFINE_CAPTURED, 0);
+            frames.add(new Frame(true, 0));
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            List<Stmt> body = LazyBody.load(method);
+            BytecodeFunction compiled = compileFunction(method.name.lexeme, method.params, body, method.frameSize,
+                    method.frameCaptured, method.name.lexeme.equals("init"), true);
+            emit(OpCode.CLOSURE, constant(compiled));
+        }
+        for (Stmt.Function staticMethod : stmt.staticMethods) {
+            List<Stmt> body = LazyBody.load(staticMethod);
+            BytecodeFunction compiled = compileFunction(staticMethod.name.lexeme, staticMethod.params, body,
+                    staticMethod.frameSize, staticMethod.frameCaptured, false, false);
+            emit(OpCode.CLOSURE, constant(compiled));
+        }
+
+        line = stmt.name.line;
+        emit(OpCode.CLASS, constant(stmt.name.lexeme), stmt.methods.size(), stmt.staticMethods.size(),
+                hasSuperclass ? 1 : 0);
+        stackDepth -= stmt.methods.size() + stmt.staticMethods.size() + (hasSuperclass ? 1 : 0);
+
+        if (hasSuperclass) {
+            frames.remove(frames.size() - 1);
+            emit(OpCode.EXIT_SCOPE);
+        }
+        emitDefine(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // An assignment to a stack slot whose value isn't used stores it with the pop
+        if (stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            if (assign.depth >= 0) {
+                Frame frame = frames.get(frames.size() - 1 - assign.depth);
+                if (!frame.captured) {
+                    compile(assign.value);
+                    line = assign.name.line;
+                    emit(OpCode.DEFINE_LOCAL, frame.offset + assign.slot);
+                    return null;
+                }
+            }
+        }
+
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        List<Stmt> body = LazyBody.load(stmt);
+        BytecodeFunction compiled = compileFunction(stmt.name.lexeme, stmt.params, body, stmt.frameSize,
+                stmt.frameCaptured, false, false);
+        emit(OpCode.CLOSURE, constant(compiled));
+        emitDefine(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseJump = conditionJump(stmt.condition);
+        compile(stmt.thenBranch);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.keyword.line;
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        emitDefine(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = function.chunk.count;
+        int exitJump = conditionJump(stmt.condition);
+
+        loops.push(new Loop(scopeDepth));
+        compile(stmt.body);
+        Loop loop = loops.pop();
+
+        emit(OpCode.JUMP, loopStart);
+        patchJump(exitJump);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    private BytecodeFunction compileFunction(String name, List<Token> params, List<Stmt> body, int frameSize,
+            boolean frameCaptured, boolean isInitializer, boolean isMethod) {
+        BytecodeFunction enclosing = function;
+        Stack<Loop> enclosingLoops = loops;
+        int enclosingScopeDepth = scopeDepth;
+        int enclosingStackDepth = stackDepth;
+        int enclosingLocalsTop = localsTop;
+
+        function = new BytecodeFunction(name, params.size(), frameSize, frameCaptured, isInitializer, isMethod);
+        loops = new Stack<>();
+        scopeDepth = 0;
+        stackDepth = 0;
+        // Either way the receiver and arguments arrive in the first slots
+        localsTop = frameCaptured ? function.localCount : frameSize;
+        function.localCount = localsTop;
+        frames.add(new Frame(frameCaptured, 0));
+
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+
+        frames.remove(frames.size() - 1);
+        BytecodeFunction compiled = function;
+        function = enclosing;
+        loops = enclosingLoops;
+        scopeDepth = enclosingScopeDepth;
+        stackDepth = enclosingStackDepth;
+        localsTop = enclosingLocalsTop;
+        return compiled;
+    }
+
+    /**
+     * Emits the instruction for a local the Resolver found the given number of frames up:
+     * a stack slot of this call, since a frame used from another function is captured, or
+     * a slot in an Environment counting only the frames that are Environments.
+     */
+    private void emitLocal(int stackOpCode, int capturedOpCode, int depth, int slot) {
+        Frame frame = frames.get(frames.size() - 1 - depth);
+        if (frame.captured) {
+            emit(capturedOpCode, capturedDepth(depth), slot);
+        } else {
+            emit(stackOpCode, frame.offset + slot);
+        }
+    }
+
+    private int capturedDepth(int depth) {
+        int environments = 0;
+        for (int i = frames.size() - depth; i < frames.size(); ++i) {
+            if (frames.get(i).captured) environments++;
+        }
+        return environments;
+    }
+
+    private void emitDefine(int slot, Token name) {
+        if (slot >= 0) {
+            Frame frame = frames.get(frames.size() - 1);
+            if (frame.captured) {
+                emit(OpCode.DEFINE_CAPTURED, slot);
+            } else {
+                emit(OpCode.DEFINE_LOCAL, frame.offset + slot);
+            }
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, constant(name), -1);
+        }
+    }
+
+    private void emit(int opCode, int... operands) {
+        function.chunk.write(opCode, line);
+        for (int operand : operands) {
+            function.chunk.write(operand, line);
+        }
+        stackDepth += stackEffect(opCode);
+        if (stackDepth > function.maxStack) {
+            function.maxStack = stackDepth;
+        }
+    }
+
+    // Evaluates the condition and jumps if it's false, comparing and jumping at once if it's a comparison
+    private int conditionJump(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            int opCode;
+            switch (binary.operator.type) {
+                case GREATER: opCode = OpCode.JUMP_UNLESS_GREATER; break;
+                case GREATER_EQUAL: opCode = OpCode.JUMP_UNLESS_GREATER_EQUAL; break;
+                case LESS: opCode = OpCode.JUMP_UNLESS_LESS; break;
+                case LESS_EQUAL: opCode = OpCode.JUMP_UNLESS_LESS_EQUAL; break;
+                case EQUAL_EQUAL: opCode = OpCode.JUMP_UNLESS_EQUAL; break;
+                case BANG_EQUAL: opCode = OpCode.JUMP_UNLESS_NOT_EQUAL; break;
+                default: opCode = -1; break;
+            }
+            if (opCode >= 0) {
+                compile(binary.left);
+                compile(binary.right);
+                line = binary.operator.line;
+                return emitJump(opCode);
+            }
+        }
+        compile(condition);
+        return emitJump(OpCode.POP_JUMP_IF_FALSE);
+    }
+
+    private int emitJump(int opCode) {
+        emit(opCode, -1);
+        return function.chunk.count - 1;
+    }
+
+    private void patchJump(int operand) {
+        function.chunk.code[operand] = function.chunk.count;
+    }
+
+    private int constant(Object value) {
+        return function.chunk.addConstant(value);
+    }
+
+    // Operand count dependant effects (CALL, INVOKE, CLASS) are adjusted by the caller
+    private static int stackEffect(int opCode) {
+        switch (opCode) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.DUP:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_CAPTURED:
+            case OpCode.GET_GLOBAL:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+                return 1;
+            case OpCode.POP:
+            case OpCode.DEFINE_LOCAL:
+            case OpCode.DEFINE_CAPTURED:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_PROPERTY:
+            case OpCode.EQUAL:
+            case OpCode.NOT_EQUAL:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.PRINT:
+            case OpCode.RETURN:
+            case OpCode.POP_JUMP_IF_FALSE:
+                return -1;
+            case OpCode.JUMP_UNLESS_GREATER:
+            case OpCode.JUMP_UNLESS_GREATER_EQUAL:
+            case OpCode.JUMP_UNLESS_LESS:
+            case OpCode.JUMP_UNLESS_LESS_EQUAL:
+            case OpCode.JUMP_UNLESS_EQUAL:
+            case OpCode.JUMP_UNLESS_NOT_EQUAL:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+}
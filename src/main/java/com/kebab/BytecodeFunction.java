@@ -0,0 +1,37 @@
+package com.kebab;
+
+/**
+ * The compiled, environment independent part of a function. Closures over it are
+ * created at runtime by {@link OpCode#CLOSURE}.
+ */
+public class BytecodeFunction {
+    final String name;
+    final int arity;
+    final int frameSize;
+    // Whether a closure uses the frame, which then has to be an Environment that outlives the call
+    final boolean frameCaptured;
+    final boolean isInitializer;
+    // Methods take 'this' in slot 0, so their parameters start at 1
+    final int firstParameter;
+    final Chunk chunk = new Chunk();
+    // Stack slots of the locals not captured, below the operand stack, starting with the receiver and arguments
+    int localCount;
+    // Deepest the operand stack gets while running this function's own code
+    int maxStack = 0;
+
+    BytecodeFunction(String name, int arity, int frameSize, boolean frameCaptured, boolean isInitializer,
+            boolean isMethod) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.frameCaptured = frameCaptured;
+        this.isInitializer = isInitializer;
+        this.firstParameter = isMethod ? 1 : 0;
+        this.localCount = firstParameter + arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,58 @@
+package com.kebab;
+
+import java.util.Arrays;
+
+/**
+ * Compiled code of one function: the instruction words, the constants they refer to
+ * and a run-length encoded table mapping code offsets back to source lines.
+ */
+public class Chunk {
+    int[] code = new int[16];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    // lineStarts[i] is the first offset compiled from line lines[i]
+    private int[] lineStarts = new int[8];
+    private int[] lines = new int[8];
+    private int lineCount = 0;
+
+    int write(int word, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        if (lineCount == 0 || lines[lineCount - 1] != line) {
+            if (lineCount == lines.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                lines = Arrays.copyOf(lines, lineCount * 2);
+            }
+            lineStarts[lineCount] = count;
+            lines[lineCount] = line;
+            lineCount++;
+        }
+        code[count] = word;
+        return count++;
+    }
+
+    int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    int getLine(int offset) {
+        int low = 0;
+        int high = lineCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return lineCount == 0 ? 0 : lines[low];
+    }
+}
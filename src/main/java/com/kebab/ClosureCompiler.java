@@ -0,0 +1,338 @@
+package com.kebab;
+
+import java.util.List;
+
+/**
+ * Lowers a resolved program into a tree of {@link ExprNode}s and {@link StmtNode}s,
+ * once, so that running it never has to look at the AST again.
+ */
+public class ClosureCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Globals globals;
+    // Whether to emit operators that specialize themselves on the types they see
+    private final boolean specialize;
+    // Whether the expression being compiled is an operand of a specializing operator
+    private boolean unboxedOperand = false;
+    private CompiledFunction.Template currentFunction = null;
+    private int loopDepth = 0;
+    private boolean hadError = false;
+
+    ClosureCompiler(Globals globals, boolean specialize) {
+        this.globals = globals;
+        this.specialize = specialize;
+    }
+
+    /**
+     * Returns the compiled top level statements, or null if the program can't be compiled.
+     */
+    public StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = compileAll(statements);
+        if (hadError) return null;
+        return nodes;
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        if (expr.depth == 0) return new ExprNode.LocalSet0(expr.slot, value);
+        if (expr.depth > 0) return new ExprNode.LocalSet(expr.depth, expr.slot, value);
+        return new ExprNode.GlobalSet(expr.name, globals, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        if (specialize && expr.operator.type != TokenType.COMMA
+                && (unboxedOperand && isArithmetic(expr) || isArithmetic(expr.left) || isArithmetic(expr.right))) {
+            return specializing(compileOperand(expr.left), compileOperand(expr.right), expr.operator);
+        }
+
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case COMMA: return new ExprNode.Comma(left, right, expr.operator);
+            case GREATER: return new ExprNode.Greater(left, right, expr.operator);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(left, right, expr.operator);
+            case LESS: return new ExprNode.Less(left, right, expr.operator);
+            case LESS_EQUAL: return new ExprNode.LessEqual(left, right, expr.operator);
+            case BANG_EQUAL: return new ExprNode.NotEqual(left, right, expr.operator);
+            case EQUAL_EQUAL: return new ExprNode.Equal(left, right, expr.operator);
+            case MINUS: return new ExprNode.Subtract(left, right, expr.operator);
+            case STAR: return new ExprNode.Multiply(left, right, expr.operator);
+            case SLASH: return new ExprNode.Divide(left, right, expr.operator);
+            case PLUS: return new ExprNode.Add(left, right, expr.operator);
+            default:
+                // Unreachable
+                return null;
+        }
+    }
+
+    /**
+     * Whether the expression is arithmetic over nothing but variables, literals and more
+     * arithmetic. Only operators passing a number straight to one like that have a box to
+     * save: next to a call the box is cheap, and the plain nodes, with fewer kinds of
+     * operands at each of their call sites, leave the JIT more room to inline the call.
+     */
+    private static boolean isArithmetic(Expr expr) {
+        expr = ungrouped(expr);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && isArithmeticOperand(unary.right);
+        }
+        if (!(expr instanceof Expr.Binary)) return false;
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case PLUS:
+                return isArithmeticOperand(binary.left) && isArithmeticOperand(binary.right);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isArithmeticOperand(Expr expr) {
+        expr = ungrouped(expr);
+        return expr instanceof Expr.Literal || expr instanceof Expr.Variable || isArithmetic(expr);
+    }
+
+    private static Expr ungrouped(Expr expr) {
+        while (expr instanceof Expr.Grouping) expr = ((Expr.Grouping) expr).expression;
+        return expr;
+    }
+
+    private ExprNode specializing(ExprNode left, ExprNode right, Token operator) {
+        switch (operator.type) {
+            case GREATER: return new SpecializingNode.Greater(left, right, operator);
+            case GREATER_EQUAL: return new SpecializingNode.GreaterEqual(left, right, operator);
+            case LESS: return new SpecializingNode.Less(left, right, operator);
+            case LESS_EQUAL: return new SpecializingNode.LessEqual(left, right, operator);
+            case BANG_EQUAL: return new SpecializingNode.Equal(left, right, operator, true);
+            case EQUAL_EQUAL: return new SpecializingNode.Equal(left, right, operator, false);
+            case MINUS: return new SpecializingNode.Subtract(left, right, operator);
+            case STAR: return new SpecializingNode.Multiply(left, right, operator);
+            case SLASH: return new SpecializingNode.Divide(left, right, operator);
+            case PLUS: return new SpecializingNode.Add(left, right, operator);
+            default:
+                // Unreachable
+                return null;
+        }
+    }
+
+    @Override
+    public ExprNode visitTernaryExpr(Expr.Ternary expr) {
+        return new ExprNode.Conditional(compile(expr.condition), compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            ExprNode object = compile(get.object);
+            return new ExprNode.Invoke(object, get.name, compileArguments(expr.arguments), expr.paren, currentFunction);
+        }
+        ExprNode callee = compile(expr.callee);
+        return new ExprNode.Call(callee, compileArguments(expr.arguments), expr.paren, currentFunction);
+    }
+
+    private ExprNode[] compileArguments(List<Expr> expressions) {
+        ExprNode[] arguments = new ExprNode[expressions.size()];
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = compile(expressions.get(i));
+        }
+        return arguments;
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLambdaExpr(Expr.Lambda expr) {
+        return new ExprNode.Closure(compileFunction("lambda", expr.params, expr.body, expr.frameSize, false, false));
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(compile(expr.left), compile(expr.right));
+        }
+        return new ExprNode.And(compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(expr.depth, expr.thisDepth, expr.method);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            if (specialize && (unboxedOperand || isArithmetic(expr.right))) {
+                return new SpecializingNode.Negate(compileOperand(expr.right), expr.operator);
+            }
+            return new ExprNode.Negate(compile(expr.right), expr.operator);
+        }
+        return new ExprNode.Not(compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) return new StmtNode.Sequence(compileAll(stmt.statements));
+        return new StmtNode.Block(stmt.frameSize, compileAll(stmt.statements));
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) {
+            App.report(stmt.token.line, "", "'break' must be used inside a loop.");
+            hadError = true;
+        }
+        return new StmtNode.Break();
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        ExprNode superclass = null;
+        Token superclassName = null;
+        if (stmt.superclass != null) {
+            superclass = compile(stmt.superclass);
+            superclassName = stmt.superclass.name;
+        }
+
+        CompiledFunction.Template[] methods = new CompiledFunction.Template[stmt.methods.size()];
+        for (int i = 0; i < methods.length; ++i) {
+            Stmt.Function method = stmt.methods.get(i);
+            methods[i] = compileFunction(method.name.lexeme, method.params, LazyBody.load(method), method.frameSize,
+                    method.name.lexeme.equals("init"), true);
+        }
+        CompiledFunction.Template[] staticMethods = new CompiledFunction.Template[stmt.staticMethods.size()];
+        for (int i = 0; i < staticMethods.length; ++i) {
+            Stmt.Function staticMethod = stmt.staticMethods.get(i);
+            staticMethods[i] = compileFunction(staticMethod.name.lexeme, staticMethod.params,
+                    LazyBody.load(staticMethod), staticMethod.frameSize, false, false);
+        }
+
+        return new StmtNode.Class(stmt.name, stmt.slot, globals, superclass, superclassName, methods, staticMethods);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        CompiledFunction.Template function = compileFunction(stmt.name.lexeme, stmt.params, LazyBody.load(stmt),
+                stmt.frameSize, false, false);
+        return define(stmt.slot, stmt.name, new ExprNode.Closure(function));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        StmtNode elseBranch = stmt.elseBranch == null ? null : compile(stmt.elseBranch);
+        return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        ExprNode value = stmt.value == null ? null : compile(stmt.value);
+        return new StmtNode.Return(value, currentFunction);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode value = stmt.initializer == null ? new ExprNode.Constant(null) : compile(stmt.initializer);
+        return define(stmt.slot, stmt.name, value);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        loopDepth++;
+        StmtNode body = compile(stmt.body);
+        loopDepth--;
+        return new StmtNode.While(condition, body);
+    }
+
+    private CompiledFunction.Template compileFunction(String name, List<Token> params, List<Stmt> body,
+            int frameSize, boolean isInitializer, boolean isMethod) {
+        CompiledFunction.Template enclosingFunction = currentFunction;
+        int enclosingLoopDepth = loopDepth;
+
+        CompiledFunction.Template function = new CompiledFunction.Template(name, params.size(), frameSize, isInitializer,
+                isMethod);
+        currentFunction = function;
+        loopDepth = 0;
+        function.body = compileAll(body);
+
+        currentFunction = enclosingFunction;
+        loopDepth = enclosingLoopDepth;
+        return function;
+    }
+
+    private ExprNode variable(Token name, int depth, int slot) {
+        if (depth == 0) return new ExprNode.LocalGet0(slot);
+        if (depth == 1) return new ExprNode.LocalGet1(slot);
+        if (depth > 1) return new ExprNode.LocalGet(depth, slot);
+        return new ExprNode.GlobalGet(name, globals);
+    }
+
+    private StmtNode define(int slot, Token name, ExprNode value) {
+        if (slot >= 0) return new StmtNode.DefineLocal(slot, value);
+        return new StmtNode.DefineGlobal(name.lexeme, globals, value);
+    }
+
+    private StmtNode[] compileAll(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode compile(Expr expr) {
+        unboxedOperand = false;
+        return expr.accept(this);
+    }
+
+    private ExprNode compileOperand(Expr expr) {
+        unboxedOperand = true;
+        return ungrouped(expr).accept(this);
+    }
+}
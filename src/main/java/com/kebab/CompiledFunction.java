@@ -0,0 +1,130 @@
+package com.kebab;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+public class CompiledFunction implements LoxMethod {
+    private static final MethodHandle EXECUTE;
+
+    static {
+        try {
+            EXECUTE = MethodHandles.lookup().findStatic(CompiledFunction.class, "execute",
+                    MethodType.methodType(Object.class, Template.class, Environment.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * What the {@link ClosureCompiler} produced for one function declaration, shared by
+     * every closure created from it.
+     */
+    static class Template {
+        final String name;
+        final int arity;
+        final int frameSize;
+        final boolean isInitializer;
+        // Methods take 'this' in slot 0, so their parameters start at 1
+        final int firstParameter;
+        StmtNode[] body;
+        // Set by a 'return' right before it completes with StmtNode.RETURN
+        Object returnValue;
+        // How a function calls itself, see invokeRecursive()
+        final MethodHandle execute = EXECUTE;
+
+        Template(String name, int arity, int frameSize, boolean isInitializer, boolean isMethod) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+            this.isInitializer = isInitializer;
+            this.firstParameter = isMethod ? 1 : 0;
+        }
+    }
+
+    final Template template;
+    private final Environment closure;
+    // Set on a method bound by bind()
+    private final LoxInstance receiver;
+
+    CompiledFunction(Template template, Environment closure) {
+        this(template, closure, null);
+    }
+
+    private CompiledFunction(Template template, Environment closure, LoxInstance receiver) {
+        this.template = template;
+        this.closure = closure;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int arity() {
+        return template.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(newFrame(), arguments);
+    }
+
+    @Override
+    public Object callMethod(LoxInstance receiver, Interpreter interpreter, Object[] arguments) {
+        return invoke(newFrame(receiver), arguments);
+    }
+
+    private Object invoke(Environment frame, Object[] arguments) {
+        System.arraycopy(arguments, 0, frame.values, template.firstParameter, arguments.length);
+        return invoke(frame);
+    }
+
+    Environment newFrame() {
+        return newFrame(receiver);
+    }
+
+    Environment newFrame(LoxInstance receiver) {
+        Environment frame = new Environment(closure, template.frameSize);
+        if (template.firstParameter > 0) frame.values[0] = receiver;
+        return frame;
+    }
+
+    Object invoke(Environment frame) {
+        return execute(template, frame);
+    }
+
+    /**
+     * Runs a call of the function from its own body. The JIT can't see through a handle
+     * read from a field, so it doesn't inline the body into its own call sites, which
+     * makes the first compile of a recursive function many times bigger and slower, and
+     * leaves everything else running unoptimized until it's done.
+     */
+    Object invokeRecursive(Environment frame) {
+        try {
+            return (Object) template.execute.invokeExact(template, frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object execute(Template template, Environment frame) {
+        int completion = StmtNode.executeAll(template.body, frame);
+        if (template.isInitializer) return frame.values[0];
+        if (completion == StmtNode.RETURN) {
+            Object value = template.returnValue;
+            template.returnValue = null;
+            return value;
+        }
+        return null;
+    }
+
+    @Override
+    public CompiledFunction bind(LoxInstance instance) {
+        return new CompiledFunction(template, closure, instance);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + template.name + ">";
+    }
+}
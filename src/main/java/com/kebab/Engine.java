@@ -0,0 +1,11 @@
+package com.kebab;
+
+import java.util.List;
+
+/**
+ * Something that can run a resolved program. Runtime errors are reported through
+ * {@link App#runtimeError(RuntimeError)} rather than thrown.
+ */
+public interface Engine {
+    void interpret(List<Stmt> statements);
+}
@@ -1,52 +1,29 @@
 package com.kebab;
 
-import java.util.HashMap;
-import java.util.Map;
-
+/**
+ * A fixed-size frame of local variables. The Resolver gives every local a slot in
+ * its scope, so reading or writing one is a walk up {@code distance} frames and an
+ * array index. Globals are not stored here, see {@link Globals}.
+ */
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-
-    public Environment() {
-        this.enclosing = null;
-    }
+    final Object[] values;
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = new Object[size];
     }
 
-    public void define(String name, Object value) {
-        values.put(name, value);
-    }
-
-    public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        } else if (enclosing != null) {
-            return enclosing.get(name);
-        }
-        
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        } else if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    public void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-	public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+	public Object getAt(int distance, int slot) {
+        return ancestor(distance).values[slot];
 	}
 
-	public void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+	public void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).values[slot] = value;
 	}
 
     private Environment ancestor(int distance) {
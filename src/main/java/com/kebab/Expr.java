@@ -23,6 +23,8 @@ abstract class Expr {
 	static class Assign extends Expr {
 		final Token name;
 		final Expr value;
+		int depth = -1;
+		int slot = -1;
 		Assign (Token name, Expr value) {
 			this.name = name;
 			this.value = value;
@@ -97,6 +99,7 @@ abstract class Expr {
 	static class Get extends Expr {
 		final Expr object;
 		final Token name;
+		PropertyCache cache = new PropertyCache();
 		Get (Expr object, Token name) {
 			this.object = object;
 			this.name = name;
@@ -129,6 +132,8 @@ abstract class Expr {
 	static class Lambda extends Expr {
 		final List<Token> params;
 		final List<Stmt> body;
+		int frameSize = 0;
+		boolean frameCaptured = false;
 		Lambda (List<Token> params, List<Stmt> body) {
 			this.params = params;
 			this.body = body;
@@ -181,6 +186,7 @@ abstract class Expr {
 		final Expr object;
 		final Token name;
 		final Expr value;
+		PropertyCache cache = new PropertyCache();
 		Set (Expr object, Token name, Expr value) {
 			this.object = object;
 			this.name = name;
@@ -199,6 +205,8 @@ abstract class Expr {
 	static class Super extends Expr {
 		final Token keyword;
 		final Token method;
+		int depth = -1;
+		int thisDepth = -1;
 		Super (Token keyword, Token method) {
 			this.keyword = keyword;
 			this.method = method;
@@ -215,6 +223,8 @@ abstract class Expr {
 
 	static class This extends Expr {
 		final Token keyword;
+		int depth = -1;
+		int slot = -1;
 		This (Token keyword) {
 			this.keyword = keyword;
 		}
@@ -247,6 +257,8 @@ abstract class Expr {
 
 	static class Variable extends Expr {
 		final Token name;
+		int depth = -1;
+		int slot = -1;
 		Variable (Token name) {
 			this.name = name;
 		}
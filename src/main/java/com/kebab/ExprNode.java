@@ -0,0 +1,647 @@
+package com.kebab;
+
+
+/**
+ * An expression lowered by the {@link ClosureCompiler}. Every node already knows what
+ * it does (which operator, which frame and slot) so evaluating it is a single virtual
+ * call with no dispatch on the operator or lookups in resolution tables.
+ */
+abstract class ExprNode {
+    abstract Object evaluate(Environment environment);
+
+    /**
+     * Evaluates to a number without boxing it, for nodes that know they produce one.
+     * Anything else is handed back to the caller in an {@link UnexpectedResult}.
+     */
+    double evaluateDouble(Environment environment) throws UnexpectedResult {
+        Object value = evaluate(environment);
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    /**
+     * Evaluates a condition, without boxing for nodes that know they produce a boolean.
+     */
+    boolean isTruthy(Environment environment) {
+        return Interpreter.isTruthy(evaluate(environment));
+    }
+
+    /**
+     * A value that didn't have the type a typed evaluate method promised.
+     */
+    static final class UnexpectedResult extends Exception {
+        final Object result;
+
+        UnexpectedResult(Object result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+    }
+
+    static class Constant extends ExprNode {
+        final Object value;
+        final boolean isNumber;
+        final double number;
+
+        Constant(Object value) {
+            this.value = value;
+            this.isNumber = value instanceof Double;
+            this.number = isNumber ? (double) value : 0;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return value;
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (isNumber) return number;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class LocalGet0 extends ExprNode {
+        final int slot;
+
+        LocalGet0(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return environment.values[slot];
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            Object value = environment.values[slot];
+            if (value instanceof Double) return (double) value;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class LocalGet1 extends ExprNode {
+        final int slot;
+
+        LocalGet1(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return environment.enclosing.values[slot];
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            Object value = environment.enclosing.values[slot];
+            if (value instanceof Double) return (double) value;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class LocalGet extends ExprNode {
+        final int depth;
+        final int slot;
+
+        LocalGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            Object value = environment.getAt(depth, slot);
+            if (value instanceof Double) return (double) value;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class GlobalGet extends ExprNode {
+        final Token name;
+        final Globals globals;
+        final int slot;
+
+        GlobalGet(Token name, Globals globals) {
+            this.name = name;
+            this.globals = globals;
+            this.slot = globals.slot(name.lexeme);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return globals.get(slot, name);
+        }
+    }
+
+    static class LocalSet0 extends ExprNode {
+        final int slot;
+        final ExprNode value;
+
+        LocalSet0(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            environment.values[slot] = result;
+            return result;
+        }
+    }
+
+    static class LocalSet extends ExprNode {
+        final int depth;
+        final int slot;
+        final ExprNode value;
+
+        LocalSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+    }
+
+    static class GlobalSet extends ExprNode {
+        final Token name;
+        final Globals globals;
+        final int slot;
+        final ExprNode value;
+
+        GlobalSet(Token name, Globals globals, ExprNode value) {
+            this.name = name;
+            this.globals = globals;
+            this.slot = globals.slot(name.lexeme);
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object result = value.evaluate(environment);
+            globals.assign(slot, name, result);
+            return result;
+        }
+    }
+
+    abstract static class BinaryNode extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+        final Token operator;
+
+        BinaryNode(ExprNode left, ExprNode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        double number(Object value) {
+            if (value instanceof Double) return (double) value;
+            throw new RuntimeError(operator, "Operands must be a number");
+        }
+    }
+
+    static class Add extends BinaryNode {
+        Add(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            if (a instanceof Double && b instanceof Double) {
+                return (double) a + (double) b;
+            }
+            if (a instanceof String && b instanceof String) {
+                return (String) a + (String) b;
+            }
+            throw new RuntimeError(operator, "Operands must be two 2 numbers or 2 strings");
+        }
+    }
+
+    static class Subtract extends BinaryNode {
+        Subtract(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) - number(b);
+        }
+    }
+
+    static class Multiply extends BinaryNode {
+        Multiply(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) * number(b);
+        }
+    }
+
+    static class Divide extends BinaryNode {
+        Divide(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            double dividend = number(a);
+            double divisor = number(b);
+            if (divisor == 0) {
+                throw new RuntimeError(operator, "Division by 0 is not allowed");
+            }
+            return dividend / divisor;
+        }
+    }
+
+    static class Greater extends BinaryNode {
+        Greater(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) > number(b);
+        }
+    }
+
+    static class GreaterEqual extends BinaryNode {
+        GreaterEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) >= number(b);
+        }
+    }
+
+    static class Less extends BinaryNode {
+        Less(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) < number(b);
+        }
+    }
+
+    static class LessEqual extends BinaryNode {
+        LessEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            return number(a) <= number(b);
+        }
+    }
+
+    static class Equal extends BinaryNode {
+        Equal(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+        }
+    }
+
+    static class NotEqual extends BinaryNode {
+        NotEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return !Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+        }
+    }
+
+    static class Comma extends BinaryNode {
+        Comma(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            left.evaluate(environment);
+            return right.evaluate(environment);
+        }
+    }
+
+    static class And extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+
+        And(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = left.evaluate(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+    }
+
+    static class Or extends ExprNode {
+        final ExprNode left;
+        final ExprNode right;
+
+        Or(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = left.evaluate(environment);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+    }
+
+    static class Conditional extends ExprNode {
+        final ExprNode condition;
+        final ExprNode left;
+        final ExprNode right;
+
+        Conditional(ExprNode condition, ExprNode left, ExprNode right) {
+            this.condition = condition;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (condition.isTruthy(environment)) {
+                return left.evaluate(environment);
+            }
+            return right.evaluate(environment);
+        }
+    }
+
+    static class Negate extends ExprNode {
+        final ExprNode right;
+        final Token operator;
+
+        Negate(ExprNode right, Token operator) {
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = right.evaluate(environment);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number");
+            }
+            return -(double) value;
+        }
+    }
+
+    static class Not extends ExprNode {
+        final ExprNode right;
+
+        Not(ExprNode right) {
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return !right.isTruthy(environment);
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            return !right.isTruthy(environment);
+        }
+    }
+
+    static class Call extends ExprNode {
+        final ExprNode callee;
+        final ExprNode[] arguments;
+        final Token paren;
+        // The function the call is in, null at the top level
+        final CompiledFunction.Template caller;
+
+        Call(ExprNode callee, ExprNode[] arguments, Token paren, CompiledFunction.Template caller) {
+            this.callee = callee;
+            this.arguments = arguments;
+            this.paren = paren;
+            this.caller = caller;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return call(callee.evaluate(environment), arguments, paren, caller, environment);
+        }
+
+        static Object call(Object value, ExprNode[] arguments, Token paren, CompiledFunction.Template caller,
+                           Environment environment) {
+            if (!(value instanceof LoxCallable)) {
+                System.out.println(value);
+                throw new RuntimeError(paren, "Can only call functions and classes");
+            }
+
+            // Arguments go straight into the frame of a function or initializer
+            CompiledFunction function = null;
+            Environment frame = null;
+            if (value instanceof CompiledFunction) {
+                function = (CompiledFunction) value;
+                frame = function.newFrame();
+            } else if (value instanceof LoxClass && ((LoxClass) value).initializer() instanceof CompiledFunction) {
+                function = (CompiledFunction) ((LoxClass) value).initializer();
+                frame = function.newFrame(new LoxInstance((LoxClass) value));
+            }
+            if (function != null && function.arity() == arguments.length) {
+                int first = function.template.firstParameter;
+                for (int i = 0; i < arguments.length; ++i) {
+                    frame.values[first + i] = arguments[i].evaluate(environment);
+                }
+                return function.template == caller ? function.invokeRecursive(frame) : function.invoke(frame);
+            }
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; ++i) {
+                values[i] = arguments[i].evaluate(environment);
+            }
+            LoxCallable callable = (LoxCallable) value;
+            if (values.length != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got " + values.length + ".");
+            }
+            return callable.call(null, values);
+        }
+    }
+
+    /**
+     * A call of a property, {@code object.name(arguments)}. When the property is a method
+     * the receiver goes straight into the method's frame instead of being bound first.
+     */
+    static class Invoke extends ExprNode {
+        final ExprNode object;
+        final Token name;
+        final ExprNode[] arguments;
+        final Token paren;
+        final CompiledFunction.Template caller;
+        final PropertyCache cache = new PropertyCache();
+
+        Invoke(ExprNode object, Token name, ExprNode[] arguments, Token paren, CompiledFunction.Template caller) {
+            this.object = object;
+            this.name = name;
+            this.arguments = arguments;
+            this.paren = paren;
+            this.caller = caller;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object value = object.evaluate(environment);
+            if (!(value instanceof LoxInstance)) {
+                return Call.call(Get.property(value, name, cache), arguments, paren, caller, environment);
+            }
+
+            LoxInstance receiver = (LoxInstance) value;
+            LoxMethod method = cache.findMethod(receiver, name);
+            if (method == null) {
+                return Call.call(cache.get(receiver, name), arguments, paren, caller, environment);
+            }
+            if (method instanceof CompiledFunction && method.arity() == arguments.length) {
+                CompiledFunction function = (CompiledFunction) method;
+                Environment frame = function.newFrame(receiver);
+                for (int i = 0; i < arguments.length; ++i) {
+                    frame.values[i + 1] = arguments[i].evaluate(environment);
+                }
+                return function.template == caller ? function.invokeRecursive(frame) : function.invoke(frame);
+            }
+            return Call.call(method.bind(receiver), arguments, paren, caller, environment);
+        }
+    }
+
+    static class Get extends ExprNode {
+        final ExprNode object;
+        final Token name;
+        final PropertyCache cache = new PropertyCache();
+
+        Get(ExprNode object, Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return property(object.evaluate(environment), name, cache);
+        }
+
+        static Object property(Object value, Token name, PropertyCache cache) {
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance) value, name);
+            } else if (value instanceof LoxClass) {
+                return ((LoxClass) value).getStaticMethod(name.lexeme);
+            }
+
+            throw new RuntimeError(
+                    name,
+                    "Only properties of an instance and static methods of a class can be accessed this way"
+            );
+        }
+    }
+
+    static class Set extends ExprNode {
+        final ExprNode object;
+        final Token name;
+        final ExprNode value;
+        final PropertyCache cache = new PropertyCache();
+
+        Set(ExprNode object, Token name, ExprNode value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            Object target = object.evaluate(environment);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields");
+            }
+
+            Object result = value.evaluate(environment);
+            cache.set((LoxInstance) target, name, result);
+            return result;
+        }
+    }
+
+    static class Super extends ExprNode {
+        final int depth;
+        final int thisDepth;
+        final Token method;
+
+        Super(int depth, int thisDepth, Token method) {
+            this.depth = depth;
+            this.thisDepth = thisDepth;
+            this.method = method;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            LoxClass superclass = (LoxClass) environment.getAt(depth, 0);
+            LoxInstance object = (LoxInstance) environment.getAt(thisDepth, 0);
+
+            LoxMethod found = superclass.findMethod(method.lexeme);
+            if (found == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+            return found.bind(object);
+        }
+    }
+
+    static class Closure extends ExprNode {
+        final CompiledFunction.Template template;
+
+        Closure(CompiledFunction.Template template) {
+            this.template = template;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return new CompiledFunction(template, environment);
+        }
+    }
+}
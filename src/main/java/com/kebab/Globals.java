@@ -0,0 +1,59 @@
+package com.kebab;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The global variables of a program, in a growable table. Each name gets a slot the
+ * first time anything asks for it, so a use can look up its slot once and index the
+ * table from then on. A slot that was handed out but never defined holds a marker, and
+ * reading or assigning it is the usual undefined variable error.
+ */
+public class Globals {
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private Object[] values = new Object[16];
+
+    public Globals() {
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+
+        slot = slots.size();
+        slots.put(name, slot);
+        if (slot == values.length) {
+            values = Arrays.copyOf(values, slot * 2);
+            Arrays.fill(values, slot, values.length, UNDEFINED);
+        }
+        return slot;
+    }
+
+    public Object get(int slot, Token name) {
+        Object value = values[slot];
+        if (value == UNDEFINED) throw undefined(name);
+        return value;
+    }
+
+    public void assign(int slot, Token name, Object value) {
+        if (values[slot] == UNDEFINED) throw undefined(name);
+        values[slot] = value;
+    }
+
+    public void define(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    public void define(String name, Object value) {
+        int slot = slot(name);
+        values[slot] = value;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+}
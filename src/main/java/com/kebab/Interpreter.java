@@ -1,6 +1,5 @@
 package com.kebab;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,11 +28,13 @@ import com.kebab.Stmt.Return;
 import com.kebab.Stmt.Var;
 import com.kebab.Stmt.While;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Engine, Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    private class BreakException extends RuntimeException {
+    // Only thrown for a 'break' that escapes the function it is in, see returnValue()
+    private static class BreakException extends RuntimeException {
         final Token token;
         public BreakException(Token token) {
+            super(null, null, false, false);
             this.token = token;
         }
 
@@ -42,63 +43,26 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private Map<Expr, Integer> locals = new HashMap<>();
+    private static final Token LAMBDA_NAME = new Token(TokenType.IDENTIFIER, "lambda", null, 0);
 
-    public Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+    // How the last executed statement completed. 'break' and 'return' set it and every
+    // statement list stops early until the loop or the function they leave resets it.
+    private static final int NORMAL = 0;
+    private static final int BREAK = 1;
+    private static final int RETURN = 2;
+    private int completion = NORMAL;
+    private Object returnValue;
+    private Token breakToken;
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    final Globals globals = new Globals();
+    // Top level code has no local frame, everything it declares is a global
+    private Environment environment = null;
 
-        globals.define("print", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                System.out.println(arguments.get(0));
-                return null;
-            }
-
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
-
-        globals.define("exit", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                System.exit(0);
-                return null;
-            }
-
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    public Interpreter() {
+        Natives.define(globals);
     }
 
-	public void resolve(Expr expr, int i) {
-        locals.put(expr, i);
-	}
-
+    @Override
     public void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
@@ -114,13 +78,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            // The slot the Resolver leaves unused for a global is set to its Globals slot on the first run
+            if (expr.slot < 0) expr.slot = globals.slot(expr.name.lexeme);
+            globals.assign(expr.slot, expr.name, value);
         }
-        //environment.assign(expr.name, value);
         return value;
     }
 
@@ -177,30 +141,76 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	@Override
 	public Object visitCallExpr(Call expr) {
-        Object callee = evaluate(expr.callee);
+        Object callee;
+        LoxInstance receiver = null;
+        LoxMethod method = null;
+        if (expr.callee instanceof Get) {
+            // A method called right away gets its receiver directly, without a bound method in between
+            Get get = (Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (object instanceof LoxInstance) {
+                receiver = (LoxInstance) object;
+                method = get.cache.findMethod(receiver, get.name);
+            }
+            callee = method != null ? method : getProperty(get, object);
+        } else {
+            callee = evaluate(expr.callee);
+        }
 
         if (!(callee instanceof LoxCallable)) {
             System.out.println(callee);
             throw new RuntimeError(expr.paren, "Can only call functions and classes");
         }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
-        }
-        
         LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        int argCount = expr.arguments.size();
+        if (argCount == function.arity()) {
+            // Arguments go straight into the frame of a Lox function or initializer
+            LoxFunction target = null;
+            LoxInstance instance = null;
+            if (function instanceof LoxFunction) {
+                target = (LoxFunction) function;
+            } else if (function instanceof LoxClass && ((LoxClass) function).initializer() instanceof LoxFunction) {
+                target = (LoxFunction) ((LoxClass) function).initializer();
+                instance = new LoxInstance((LoxClass) function);
+            }
+            if (target != null) {
+                Environment frame;
+                if (method != null) {
+                    frame = target.newFrame(receiver);
+                } else if (instance != null) {
+                    frame = target.newFrame(instance);
+                } else {
+                    frame = target.newFrame();
+                }
+                for (int i = 0; i < argCount; ++i) {
+                    frame.values[target.firstParameter + i] = evaluate(expr.arguments.get(i));
+                }
+                return target.invoke(this, frame);
+            }
+        }
+
+        Object[] arguments = new Object[argCount];
+        for (int i = 0; i < argCount; ++i) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        if (argCount != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+        }
+        if (method != null) {
+            return method.callMethod(receiver, this, arguments);
         }
         return function.call(this, arguments);
 	}
 
     @Override
     public Object visitGetExpr(Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(expr, evaluate(expr.object));
+    }
+
+    private Object getProperty(Get expr, Object object) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance) object, expr.name);
         } else if (object instanceof LoxClass) {
             return ((LoxClass) object).getStaticMethod(expr.name.lexeme);
         }
@@ -228,7 +238,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLambdaExpr(Lambda expr) {
-        return expr;
+        Stmt.Function declaration = new Stmt.Function(LAMBDA_NAME, expr.params, expr.body);
+        declaration.frameSize = expr.frameSize;
+        declaration.frameCaptured = expr.frameCaptured;
+        return new LoxFunction(declaration, environment, false, false);
     }
 
 	@Override
@@ -259,17 +272,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+        LoxClass superclass = (LoxClass) environment.getAt(expr.depth, 0);
+        LoxInstance object = (LoxInstance) environment.getAt(expr.thisDepth, 0);
 
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxMethod method = superclass.findMethod(expr.method.lexeme);
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
@@ -278,11 +290,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(This expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, expr.keyword.lexeme);
+        if (expr.depth >= 0) {
+            return environment.getAt(expr.depth, expr.slot);
         }
-        return globals.get(expr.keyword);
+        return globals.get(globals.slot(expr.keyword.lexeme), expr.keyword);
     }
 
 	@Override
@@ -303,17 +314,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 	@Override
 	public Object visitVariableExpr(Variable expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, expr.name.lexeme);
+        if (expr.depth >= 0) {
+            return environment.getAt(expr.depth, expr.slot);
         }
-        return globals.get(expr.name);
-        //return environment.get(expr.name);
+        if (expr.slot < 0) expr.slot = globals.slot(expr.name.lexeme);
+        return globals.get(expr.slot, expr.name);
 	}
 
     @Override
     public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // The Resolver gives a block no frame when its locals, if any, live in the enclosing one
+        if (stmt.frameSize == 0) {
+            executeBlock(stmt.statements, environment);
+        } else {
+            executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
+        }
         return null;
     }
 
@@ -327,22 +342,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        declare(stmt.slot, stmt.name, null);
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.define(0, superclass);
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
-        Map<String, LoxFunction> staticMethods = new HashMap<>();
+        Map<String, LoxMethod> methods = new HashMap<>();
+        Map<String, LoxCallable> staticMethods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"), true);
             methods.put(method.name.lexeme, function);
         }
         
         for (Stmt.Function staticMethod : stmt.staticMethods) {
-            LoxFunction function = new LoxFunction(staticMethod, environment, false);
+            LoxFunction function = new LoxFunction(staticMethod, environment, false, false);
             staticMethods.put(staticMethod.name.lexeme, function);
             System.out.println("Adding static method " + staticMethod.name.lexeme + " to " + stmt.name.lexeme);
         }
@@ -351,7 +366,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (superclass != null) {
             environment = environment.enclosing;
         }
-        environment.assign(stmt.name, klass);
+        declare(stmt.slot, stmt.name, klass);
         return null;
     }
 
@@ -363,8 +378,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        LoxFunction function = new LoxFunction(stmt, environment, false, false);
+        declare(stmt.slot, stmt.name, function);
         return null;
     }
 
@@ -379,7 +394,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Void visitReturnStmt(Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
-        throw new ReturnException(value);
+        returnValue = value;
+        completion = RETURN;
+        return null;
     }
 
 	@Override
@@ -389,7 +406,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.slot, stmt.name, value);
         return null;
 	}
 
@@ -411,13 +428,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             } catch (BreakException e) {
                 break;
             }
+            if (completion == BREAK) {
+                completion = NORMAL;
+                break;
+            }
+            if (completion == RETURN) break;
         }
         return null;
     }
 
 	@Override
 	public Void visitBreakStmt(Break stmt) {
-        throw new BreakException(stmt.token);
+        breakToken = stmt.token;
+        completion = BREAK;
+        return null;
 	}
 
     public void executeBlock(List<Stmt> statements, Environment environment) {
@@ -426,17 +450,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             this.environment = environment;
             for (Stmt statement : statements) {
                 execute(statement);
+                if (completion != NORMAL) break;
             }
         } finally {
             this.environment = previous;
         }
     }
 
+    /**
+     * Finishes a call whose body has just been executed and returns its result.
+     */
+    Object returnValue() {
+        if (completion == BREAK) {
+            // The loop being left is in a caller, the exception unwinds to it
+            completion = NORMAL;
+            throw new BreakException(breakToken);
+        }
+        Object value = returnValue;
+        returnValue = null;
+        completion = NORMAL;
+        return value;
+    }
+
     private void execute(Stmt stmt) {
         stmt.accept(this);
     }
 
-	private String stringify(Object value) {
+    private void declare(int slot, Token name, Object value) {
+        if (slot < 0) {
+            globals.define(name.lexeme, value);
+        } else {
+            environment.define(slot, value);
+        }
+    }
+
+	static String stringify(Object value) {
         if (value == null) return "nil";
         
         if (value instanceof Double) {
@@ -454,13 +502,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
         return left.equals(right);
@@ -0,0 +1,128 @@
+package com.kebab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.Type;
+
+/**
+ * Compiles a program ahead of time into a jar that runs it with {@code java -jar}. The
+ * {@link JvmCompiler} translates it a part at a time, each into the {@code run()} method
+ * of its own class so no method gets too large, and {@link JvmMain} runs the parts in
+ * order. Besides the generated classes the jar gets the runtime they need, found by
+ * following the classes each class refers to, except for the front end and the other
+ * engines, which a compiled program never loads.
+ */
+class JarCompiler {
+    private static final String PACKAGE = "com/kebab/";
+    // Classes never loaded by a compiled program, or by the classes it does load
+    private static final Set<String> EXCLUDED = new HashSet<>(Arrays.asList("App", "Scanner", "TokenBuffer",
+            "SymbolTable", "Parser", "Resolver", "LazyBody", "Optimizer", "AstPrinter", "AstCache", "AstReader",
+            "AstWriter", "JvmCompiler", "JvmEngine", "JarCompiler"));
+    private static final int CONSTANT_CLASS = 7;
+
+    private final JvmCompiler compiler = new JvmCompiler();
+    private Map<String, byte[]> classes;
+    private int parts = 0;
+
+    /**
+     * Compiles the next top-level statements of the program, returns false if they have
+     * errors. Throws {@link JvmCompiler.Unsupported} for anything the {@link JvmEngine}
+     * would fall back to the Interpreter for.
+     */
+    boolean add(List<Stmt> statements) {
+        try {
+            classes = compiler.compile(statements, JvmMain.PART + parts++);
+        } catch (MethodTooLargeException | ClassTooLargeException e) {
+            throw new JvmCompiler.Unsupported(e.getMessage());
+        }
+        return classes != null;
+    }
+
+    public void write(Path jar) throws IOException {
+        if (parts == 0) add(Collections.<Stmt>emptyList());
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, JvmMain.class.getName());
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            Deque<String> pending = new ArrayDeque<>();
+            for (Map.Entry<String, byte[]> generated : classes.entrySet()) {
+                put(out, generated.getKey(), generated.getValue());
+                addReferences(generated.getValue(), pending);
+            }
+
+            pending.add(Type.getInternalName(JvmMain.class));
+            Set<String> added = new HashSet<>();
+            while (!pending.isEmpty()) {
+                String name = pending.pop();
+                if (!added.add(name)) continue;
+
+                byte[] bytes = read(name);
+                put(out, name, bytes);
+                addReferences(bytes, pending);
+            }
+        }
+    }
+
+    // Queues the runtime classes the class refers to
+    private static void addReferences(byte[] bytes, Deque<String> pending) {
+        ClassReader reader = new ClassReader(bytes);
+        char[] buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); ++i) {
+            int offset = reader.getItem(i);
+            // The second slot of a long or double has no item
+            if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_CLASS) continue;
+
+            Type type = Type.getObjectType(reader.readUTF8(offset, buffer));
+            if (type.getSort() == Type.ARRAY) type = type.getElementType();
+            if (type.getSort() == Type.OBJECT && isRuntime(type.getInternalName())) {
+                pending.add(type.getInternalName());
+            }
+        }
+    }
+
+    private static boolean isRuntime(String name) {
+        if (!name.startsWith(PACKAGE)) return false;
+        String simpleName = name.substring(PACKAGE.length());
+        int nested = simpleName.indexOf('$');
+        return !EXCLUDED.contains(nested < 0 ? simpleName : simpleName.substring(0, nested));
+    }
+
+    private static byte[] read(String name) throws IOException {
+        try (InputStream in = JarCompiler.class.getClassLoader().getResourceAsStream(name + ".class")) {
+            if (in == null) throw new IOException("Can't find the class " + name + ".");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void put(JarOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name + ".class"));
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,28 @@
+package com.kebab;
+
+import java.util.Map;
+
+/**
+ * Defines the classes produced by one {@link JvmCompiler#compile} run. Generated code
+ * finds the globals it links against through its defining loader, and the Interpreter
+ * that runs what the engine couldn't compile, for calls to the functions it defined.
+ */
+class JvmClassLoader extends ClassLoader {
+    final Interpreter fallback;
+    final Globals globals;
+    private final Map<String, byte[]> classes;
+
+    JvmClassLoader(Interpreter fallback, Map<String, byte[]> classes) {
+        super(JvmClassLoader.class.getClassLoader());
+        this.fallback = fallback;
+        this.globals = fallback.globals;
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.remove(name.replace('.', '/'));
+        if (bytes == null) throw new ClassNotFoundException(name);
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,626 @@
+package com.kebab;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Translates a resolved program into JVM classes: the top level code becomes
+ * {@code Main.run()}, every function a static method of its own class and every class
+ * one JVM class holding its methods. Locals stay in {@link Environment} frames laid out
+ * by the Resolver; calls, property accesses and globals are invokedynamic instructions
+ * linked by {@link JvmRuntime}.
+ */
+public class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void>, Opcodes {
+
+    /**
+     * Thrown for programs this compiler can't translate; they run on the Interpreter instead.
+     */
+    static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    static final String PACKAGE = "lox/script/";
+    static final String MAIN = PACKAGE + "Main";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String ENVIRONMENT = "com/kebab/Environment";
+    private static final String RUNTIME = "com/kebab/JvmRuntime";
+    private static final String BOOTSTRAP = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+            + "Ljava/lang/invoke/MethodType;";
+
+    private static final Handle BOOTSTRAP_CALL = bootstrap("bootstrapCall", "I");
+    private static final Handle BOOTSTRAP_INVOKE = bootstrap("bootstrapInvoke", "Ljava/lang/String;I");
+    private static final Handle BOOTSTRAP_PROPERTY = bootstrap("bootstrapProperty", "Ljava/lang/String;I");
+    private static final Handle BOOTSTRAP_GLOBAL = bootstrap("bootstrapGlobal", "Ljava/lang/String;I");
+    private static final Handle BOOTSTRAP_CONSTANT = bootstrap("bootstrapConstant", "Ljava/lang/Object;");
+    private static final Handle BOOTSTRAP_CLOSURE = bootstrap("bootstrapClosure",
+            "Ljava/lang/invoke/MethodHandle;Ljava/lang/String;III");
+    private static final Handle BOOTSTRAP_SUPER = bootstrap("bootstrapSuper", "Ljava/lang/String;III");
+
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private int classCount = 0;
+    private boolean hadError = false;
+
+    // State of the method being generated
+    private MethodVisitor method;
+    private int nextLocal;
+    // JVM local holding the innermost Environment, -1 while it is null at the top level
+    private int environment;
+    private boolean isInitializer;
+    private final Stack<Label> loopEnds = new Stack<>();
+
+    /**
+     * Returns the generated classes keyed by internal name, or null if the program can't
+     * be compiled.
+     */
+    public Map<String, byte[]> compile(List<Stmt> statements) {
+        return compile(statements, MAIN);
+    }
+
+    /**
+     * Compiles the statements into the {@code run()} method of the named class. The classes
+     * of earlier calls are kept and returned too, so a program too long for one method can
+     * be compiled a part at a time.
+     */
+    public Map<String, byte[]> compile(List<Stmt> statements, String main) {
+        ClassWriter writer = newClass(main);
+        method = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "run", "()V", null, null);
+        method.visitCode();
+        nextLocal = 0;
+        environment = -1;
+        compileAll(statements);
+        method.visitInsn(RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        finishClass(main, writer);
+
+        if (hadError) return null;
+        return classes;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth >= 0) {
+            loadEnvironment();
+            push(expr.depth);
+            push(expr.slot);
+            compile(expr.value);
+            method.visitMethodInsn(INVOKESTATIC, RUNTIME, "assign",
+                    "(L" + ENVIRONMENT + ";IILjava/lang/Object;)Ljava/lang/Object;", false);
+        } else {
+            compile(expr.value);
+            global("set", "(Ljava/lang/Object;)Ljava/lang/Object;", expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            method.visitInsn(POP);
+            compile(expr.right);
+            return null;
+        }
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL: runtime("notEqual", 2); break;
+            case EQUAL_EQUAL: runtime("equal", 2); break;
+            case GREATER: operator("greater", expr.operator); break;
+            case GREATER_EQUAL: operator("greaterEqual", expr.operator); break;
+            case LESS: operator("less", expr.operator); break;
+            case LESS_EQUAL: operator("lessEqual", expr.operator); break;
+            case MINUS: operator("subtract", expr.operator); break;
+            case STAR: operator("multiply", expr.operator); break;
+            case SLASH: operator("divide", expr.operator); break;
+            case PLUS: operator("add", expr.operator); break;
+            default:
+                // Unreachable
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        Label elseBranch = new Label();
+        Label end = new Label();
+        condition(expr.condition, elseBranch);
+        compile(expr.left);
+        method.visitJumpInsn(GOTO, end);
+        method.visitLabel(elseBranch);
+        compile(expr.right);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // The callee and the arguments have to fit in the 255 parameter slots of a descriptor
+        if (expr.arguments.size() > 254) throw new Unsupported("too many arguments");
+
+        if (expr.callee instanceof Expr.Get) {
+            // The receiver is passed in place of the callee, the method is looked up by the call site
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            method.visitInvokeDynamicInsn("invoke", objects("Ljava/lang/Object;", expr.arguments.size()),
+                    BOOTSTRAP_INVOKE, get.name.lexeme, expr.paren.line);
+            return null;
+        }
+
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        method.visitInvokeDynamicInsn("call", objects("Ljava/lang/Object;", expr.arguments.size()),
+                BOOTSTRAP_CALL, expr.paren.line);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        method.visitInvokeDynamicInsn("get", "(Ljava/lang/Object;)Ljava/lang/Object;", BOOTSTRAP_PROPERTY,
+                expr.name.lexeme, expr.name.line);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        String className = PACKAGE + "Lambda" + (++classCount);
+        ClassWriter writer = newClass(className);
+        Handle handle = compileFunction(writer, className, "invoke", expr.params, expr.body, expr.frameSize,
+                false, false);
+        finishClass(className, writer);
+        closure(handle, "lambda", expr.params.size(), false, false);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            method.visitInsn(ACONST_NULL);
+        } else if (expr.value instanceof Boolean) {
+            method.visitFieldInsn(GETSTATIC, "java/lang/Boolean", (Boolean) expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else if (expr.value instanceof String) {
+            // A class file constant holds at most 65535 bytes of modified UTF-8, up to 3 per char
+            if (((String) expr.value).length() > 65535 / 3) throw new Unsupported("string too long");
+            method.visitLdcInsn(expr.value);
+        } else {
+            // Boxed once when the call site is linked instead of on every evaluation
+            method.visitInvokeDynamicInsn("constant", "()Ljava/lang/Object;", BOOTSTRAP_CONSTANT, expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+        compile(expr.left);
+        method.visitInsn(DUP);
+        truthy();
+        method.visitJumpInsn(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        method.visitInsn(POP);
+        compile(expr.right);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        method.visitInvokeDynamicInsn("set", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;",
+                BOOTSTRAP_PROPERTY, expr.name.lexeme, expr.name.line);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        loadEnvironment();
+        method.visitInvokeDynamicInsn("super", "(L" + ENVIRONMENT + ";)Ljava/lang/Object;", BOOTSTRAP_SUPER,
+                expr.method.lexeme, expr.method.line, expr.depth, expr.thisDepth);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        variable(expr.keyword, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            push(expr.operator.line);
+            method.visitMethodInsn(INVOKESTATIC, RUNTIME, "negate", "(Ljava/lang/Object;I)Ljava/lang/Object;", false);
+        } else {
+            runtime("not", 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        variable(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) {
+            compileAll(stmt.statements);
+            return null;
+        }
+
+        int enclosing = environment;
+        newEnvironment(stmt.frameSize);
+        compileAll(stmt.statements);
+        environment = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loopEnds.isEmpty()) {
+            App.report(stmt.token.line, "", "'break' must be used inside a loop.");
+            hadError = true;
+            return null;
+        }
+        // Every block keeps its frame in its own JVM local, so leaving them is just a jump
+        method.visitJumpInsn(GOTO, loopEnds.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        int superclass = -1;
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            push(stmt.superclass.name.line);
+            method.visitMethodInsn(INVOKESTATIC, RUNTIME, "checkSuperclass", "(Ljava/lang/Object;I)Ljava/lang/Object;",
+                    false);
+            superclass = nextLocal++;
+            method.visitVarInsn(ASTORE, superclass);
+        }
+
+        beginDefine(stmt.slot);
+        method.visitInsn(ACONST_NULL);
+        endDefine(stmt.slot, stmt.name);
+
+        String className = PACKAGE + "Class" + (++classCount) + "_" + stmt.name.lexeme;
+        ClassWriter writer = newClass(className);
+
+        // The class goes in the enclosing frame, its methods close over the one holding 'super'
+        beginDefine(stmt.slot);
+        int enclosing = environment;
+        if (superclass >= 0) {
+            newEnvironment(1);
+            method.visitVarInsn(ALOAD, environment);
+            push(0);
+            method.visitVarInsn(ALOAD, superclass);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(ILjava/lang/Object;)V", false);
+        }
+
+        method.visitLdcInsn(stmt.name.lexeme);
+        if (superclass >= 0) {
+            method.visitVarInsn(ALOAD, superclass);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        methods(writer, className, "method_", stmt.methods, true);
+        methods(writer, className, "static_", stmt.staticMethods, false);
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, "makeClass",
+                "(Ljava/lang/String;Ljava/lang/Object;[Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+        environment = enclosing;
+        endDefine(stmt.slot, stmt.name);
+
+        finishClass(className, writer);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        method.visitInsn(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        String className = PACKAGE + "Function" + (++classCount) + "_" + stmt.name.lexeme;
+        ClassWriter writer = newClass(className);
+        Handle handle = compileFunction(writer, className, "invoke", stmt.params, LazyBody.load(stmt), stmt.frameSize,
+                false, false);
+        finishClass(className, writer);
+
+        beginDefine(stmt.slot);
+        closure(handle, stmt.name.lexeme, stmt.params.size(), false, false);
+        endDefine(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = new Label();
+        Label end = new Label();
+        condition(stmt.condition, elseBranch);
+        compile(stmt.thenBranch);
+        method.visitJumpInsn(GOTO, end);
+        method.visitLabel(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, "print", "(Ljava/lang/Object;)V", false);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        returnValue();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        beginDefine(stmt.slot);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        endDefine(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label start = new Label();
+        Label end = new Label();
+        method.visitLabel(start);
+        condition(stmt.condition, end);
+        loopEnds.push(end);
+        compile(stmt.body);
+        loopEnds.pop();
+        method.visitJumpInsn(GOTO, start);
+        method.visitLabel(end);
+        return null;
+    }
+
+    /**
+     * Generates {@code static Object name(Environment closure, Object... arguments)} in
+     * the given class and returns a handle to it. A method takes 'this' before the
+     * arguments and keeps it in slot 0 of its environment.
+     */
+    private Handle compileFunction(ClassWriter writer, String className, String name, List<Token> params,
+            List<Stmt> body, int frameSize, boolean isInitializer, boolean isMethod) {
+        int parameters = params.size() + (isMethod ? 1 : 0);
+        // The closure and the arguments have to fit in the 255 parameter slots of a descriptor
+        if (parameters > 254) throw new Unsupported("too many parameters");
+
+        MethodVisitor enclosingMethod = method;
+        int enclosingNextLocal = nextLocal;
+        int enclosingEnvironment = environment;
+        boolean enclosingIsInitializer = this.isInitializer;
+        Stack<Label> enclosingLoopEnds = new Stack<>();
+        enclosingLoopEnds.addAll(loopEnds);
+        loopEnds.clear();
+
+        String descriptor = objects("L" + ENVIRONMENT + ";", parameters);
+        method = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, name, descriptor, null, null);
+        method.visitCode();
+        nextLocal = parameters + 1;
+        environment = 0;
+        this.isInitializer = isInitializer;
+
+        newEnvironment(frameSize);
+        for (int i = 0; i < parameters; ++i) {
+            method.visitVarInsn(ALOAD, environment);
+            push(i);
+            method.visitVarInsn(ALOAD, i + 1);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(ILjava/lang/Object;)V", false);
+        }
+        compileAll(body);
+        method.visitInsn(ACONST_NULL);
+        returnValue();
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+
+        method = enclosingMethod;
+        nextLocal = enclosingNextLocal;
+        environment = enclosingEnvironment;
+        this.isInitializer = enclosingIsInitializer;
+        loopEnds.addAll(enclosingLoopEnds);
+        return new Handle(H_INVOKESTATIC, className, name, descriptor, false);
+    }
+
+    /**
+     * Pushes an Object[] with a closure for every method, created in the current environment.
+     */
+    private void methods(ClassWriter writer, String className, String prefix, List<Stmt.Function> functions,
+            boolean bindable) {
+        push(functions.size());
+        method.visitTypeInsn(ANEWARRAY, OBJECT);
+        for (int i = 0; i < functions.size(); ++i) {
+            Stmt.Function function = functions.get(i);
+            boolean initializer = bindable && function.name.lexeme.equals("init");
+            Handle handle = compileFunction(writer, className, prefix + function.name.lexeme, function.params,
+                    LazyBody.load(function), function.frameSize, initializer, bindable);
+            method.visitInsn(DUP);
+            push(i);
+            closure(handle, function.name.lexeme, function.params.size(), initializer, bindable);
+            method.visitInsn(AASTORE);
+        }
+    }
+
+    private void closure(Handle handle, String name, int arity, boolean isInitializer, boolean isMethod) {
+        loadEnvironment();
+        method.visitInvokeDynamicInsn("closure", "(L" + ENVIRONMENT + ";)Ljava/lang/Object;", BOOTSTRAP_CLOSURE,
+                handle, name, arity, isInitializer ? 1 : 0, isMethod ? 1 : 0);
+    }
+
+    private void returnValue() {
+        if (isInitializer) {
+            // An initializer always returns 'this', its first parameter
+            method.visitInsn(POP);
+            method.visitVarInsn(ALOAD, 1);
+        }
+        method.visitInsn(ARETURN);
+    }
+
+    private void newEnvironment(int size) {
+        method.visitTypeInsn(NEW, ENVIRONMENT);
+        method.visitInsn(DUP);
+        loadEnvironment();
+        push(size);
+        method.visitMethodInsn(INVOKESPECIAL, ENVIRONMENT, "<init>", "(L" + ENVIRONMENT + ";I)V", false);
+        environment = nextLocal++;
+        method.visitVarInsn(ASTORE, environment);
+    }
+
+    private void variable(Token name, int depth, int slot) {
+        if (depth >= 0) {
+            loadEnvironment();
+            push(depth);
+            push(slot);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;", false);
+        } else {
+            global("get", "()Ljava/lang/Object;", name);
+        }
+    }
+
+    private void beginDefine(int slot) {
+        if (slot >= 0) {
+            loadEnvironment();
+            push(slot);
+        }
+    }
+
+    private void endDefine(int slot, Token name) {
+        if (slot >= 0) {
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(ILjava/lang/Object;)V", false);
+        } else {
+            global("define", "(Ljava/lang/Object;)V", name);
+        }
+    }
+
+    private void global(String operation, String descriptor, Token name) {
+        method.visitInvokeDynamicInsn(operation, descriptor, BOOTSTRAP_GLOBAL, name.lexeme, name.line);
+    }
+
+    private void condition(Expr condition, Label otherwise) {
+        compile(condition);
+        truthy();
+        method.visitJumpInsn(IFEQ, otherwise);
+    }
+
+    private void truthy() {
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, "isTruthy", "(Ljava/lang/Object;)Z", false);
+    }
+
+    /**
+     * Calls a JvmRuntime helper taking two values and the line to report if they don't fit the operator.
+     */
+    private void operator(String name, Token operator) {
+        push(operator.line);
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;I)Ljava/lang/Object;",
+                false);
+    }
+
+    private void runtime(String name, int arity) {
+        method.visitMethodInsn(INVOKESTATIC, RUNTIME, name, objects("", arity), false);
+    }
+
+    private void loadEnvironment() {
+        if (environment < 0) {
+            method.visitInsn(ACONST_NULL);
+        } else {
+            method.visitVarInsn(ALOAD, environment);
+        }
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5) {
+            method.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            method.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            method.visitIntInsn(SIPUSH, value);
+        } else {
+            method.visitLdcInsn(value);
+        }
+    }
+
+    private void compileAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private ClassWriter newClass(String name) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, OBJECT, null);
+        return writer;
+    }
+
+    private void finishClass(String name, ClassWriter writer) {
+        writer.visitEnd();
+        classes.put(name, writer.toByteArray());
+    }
+
+    /**
+     * Descriptor of a method returning Object that takes {@code first} followed by {@code count} Objects.
+     */
+    private static String objects(String first, int count) {
+        StringBuilder descriptor = new StringBuilder("(").append(first);
+        for (int i = 0; i < count; ++i) {
+            descriptor.append("Ljava/lang/Object;");
+        }
+        return descriptor.append(")Ljava/lang/Object;").toString();
+    }
+
+    private static Handle bootstrap(String name, String arguments) {
+        return new Handle(H_INVOKESTATIC, RUNTIME, name, BOOTSTRAP + arguments + ")Ljava/lang/invoke/CallSite;",
+                false);
+    }
+}
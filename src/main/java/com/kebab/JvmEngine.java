@@ -0,0 +1,46 @@
+package com.kebab;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.MethodTooLargeException;
+
+/**
+ * Runs programs as JVM bytecode generated by the {@link JvmCompiler}, so the JIT compiles
+ * Lox code like any other Java code. Programs the compiler can't translate run on the
+ * Interpreter, which shares the same globals.
+ */
+public class JvmEngine implements Engine {
+    private final Interpreter fallback = new Interpreter();
+    final Globals globals = fallback.globals;
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Map<String, byte[]> classes;
+        try {
+            classes = new JvmCompiler().compile(statements);
+        } catch (JvmCompiler.Unsupported | MethodTooLargeException | ClassTooLargeException e) {
+            fallback.interpret(statements);
+            return;
+        } catch (RuntimeError error) {
+            // From loading a lazily parsed body with errors
+            App.runtimeError(error);
+            return;
+        }
+        if (classes == null) return;
+
+        try {
+            Class<?> main = new JvmClassLoader(fallback, classes).loadClass(JvmCompiler.MAIN.replace('/', '.'));
+            MethodHandles.lookup().findStatic(main, "run", MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeError error) {
+            App.runtimeError(error);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kebab;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A closure over a function compiled to a static JVM method by the {@link JvmCompiler}.
+ * Generated code reaches these only through {@link JvmRuntime}.
+ */
+public class JvmFunction implements LoxMethod {
+
+    /**
+     * One compiled function declaration, shared by every closure created from it.
+     */
+    static class Code {
+        final String name;
+        final int arity;
+        final boolean isInitializer;
+        final boolean isMethod;
+        // (Environment closure, Object... arguments)Object, with 'this' before the arguments of a method
+        final MethodHandle handle;
+        // Same, with the arguments in an Object[]
+        final MethodHandle spreader;
+
+        Code(String name, int arity, boolean isInitializer, boolean isMethod, MethodHandle handle) {
+            this.name = name;
+            this.arity = arity;
+            this.isInitializer = isInitializer;
+            this.isMethod = isMethod;
+            this.handle = handle;
+            this.spreader = handle.asSpreader(Object[].class, arity);
+        }
+    }
+
+    final Code code;
+    final Environment closure;
+    // Set on a method bound by bind()
+    final LoxInstance receiver;
+
+    JvmFunction(Code code, Environment closure) {
+        this(code, closure, null);
+    }
+
+    private JvmFunction(Code code, Environment closure, LoxInstance receiver) {
+        this.code = code;
+        this.closure = closure;
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int arity() {
+        return code.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(receiver, arguments);
+    }
+
+    @Override
+    public Object callMethod(LoxInstance receiver, Interpreter interpreter, Object[] arguments) {
+        return invoke(receiver, arguments);
+    }
+
+    Object invoke(LoxInstance receiver, Object[] arguments) {
+        try {
+            if (code.isMethod) {
+                return (Object) code.spreader.invokeExact(closure, (Object) receiver, arguments);
+            }
+            return (Object) code.spreader.invokeExact(closure, arguments);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    @Override
+    public JvmFunction bind(LoxInstance instance) {
+        return new JvmFunction(code, closure, instance);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + code.name + ">";
+    }
+}
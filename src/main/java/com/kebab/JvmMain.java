@@ -0,0 +1,31 @@
+package com.kebab;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The entry point of a jar written by {@link JarCompiler}. Runs the parts of the compiled
+ * program in order and reports a runtime error the way the Interpreter would. None of the
+ * front end is needed, or in the jar.
+ */
+public class JvmMain {
+    // The parts are numbered classes, Main0 first
+    static final String PART = JvmCompiler.PACKAGE + "Main";
+
+    public static void main(String[] args) throws Throwable {
+        try {
+            for (int part = 0; ; ++part) {
+                Class<?> main;
+                try {
+                    main = Class.forName((PART + part).replace('/', '.'));
+                } catch (ClassNotFoundException e) {
+                    break;
+                }
+                MethodHandles.lookup().findStatic(main, "run", MethodType.methodType(void.class)).invoke();
+            }
+        } catch (RuntimeError error) {
+            System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+            System.exit(70);
+        }
+    }
+}
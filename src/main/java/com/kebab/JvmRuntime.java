@@ -0,0 +1,406 @@
+package com.kebab;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything classes generated by the {@link JvmCompiler} call into: the operators as
+ * static helpers, and the bootstrap methods that link their invokedynamic instructions.
+ * The generated classes live in their own class loader, so all of it has to be public.
+ */
+public class JvmRuntime {
+    // How many times a call site may switch to a different function before it stays generic
+    private static final int MAX_RELINKS = 8;
+    // The globals of a program compiled ahead of time, created when it first links one
+    private static Globals compiledGlobals;
+
+    private static final MethodHandle CALL_FALLBACK = findStatic("callFallback",
+            Object.class, InlineCache.class, Object.class, Object[].class);
+    private static final MethodHandle INVOKE_FALLBACK = findStatic("invokeFallback",
+            Object.class, InvokeCache.class, Object.class, Object[].class);
+    private static final MethodHandle CLOSURE_OF = findStatic("closureOf", Environment.class, Object.class);
+    private static final MethodHandle RECEIVER_OF = findStatic("receiverOf", Object.class, Object.class);
+    private static final MethodHandle HAS_CODE = findStatic("hasCode",
+            boolean.class, Object.class, JvmFunction.Code.class);
+    private static final MethodHandle HAS_SHAPE = findStatic("hasShape", boolean.class, Object.class, Shape.class);
+    private static final MethodHandle GET_PROPERTY = findStatic("getProperty",
+            Object.class, Token.class, PropertyCache.class, Object.class);
+    private static final MethodHandle SET_PROPERTY = findStatic("setProperty",
+            Object.class, Token.class, PropertyCache.class, Object.class, Object.class);
+    private static final MethodHandle GET_GLOBAL = findStatic("getGlobal",
+            Object.class, Globals.class, int.class, Token.class);
+    private static final MethodHandle SET_GLOBAL = findStatic("setGlobal",
+            Object.class, Globals.class, int.class, Token.class, Object.class);
+    private static final MethodHandle DEFINE_GLOBAL = findStatic("defineGlobal",
+            void.class, Globals.class, int.class, Token.class, Object.class);
+    private static final MethodHandle MAKE_CLOSURE = findStatic("makeClosure",
+            Object.class, JvmFunction.Code.class, Environment.class);
+    private static final MethodHandle GET_SUPER = findStatic("getSuper",
+            Object.class, Token.class, int.class, int.class, Environment.class);
+
+    private JvmRuntime() {}
+
+    /**
+     * A call site that remembers the last compiled function it saw and, while that
+     * stays true, calls its static method directly.
+     */
+    private static class InlineCache extends MutableCallSite {
+        final int line;
+        // Calls functions the Interpreter defined
+        final Interpreter interpreter;
+        MethodHandle fallback;
+        int relinks = 0;
+
+        InlineCache(MethodType type, int line, Interpreter interpreter) {
+            super(type);
+            this.line = line;
+            this.interpreter = interpreter;
+        }
+    }
+
+    /**
+     * A call site of {@code object.name(arguments)}, which gets the receiver in place of
+     * the callee. While the receivers have the shape it last saw, it calls that shape's
+     * method directly with the receiver as 'this' and never creates a bound method.
+     */
+    private static class InvokeCache extends InlineCache {
+        final Token name;
+        final PropertyCache cache = new PropertyCache();
+
+        InvokeCache(MethodType type, Token name, Interpreter interpreter) {
+            super(type, name.line, interpreter);
+            this.name = name;
+        }
+    }
+
+    public static CallSite bootstrapCall(MethodHandles.Lookup lookup, String name, MethodType type, int line) {
+        InlineCache site = new InlineCache(type, line, interpreterOf(lookup.lookupClass()));
+        site.fallback = CALL_FALLBACK.bindTo(site).asCollector(Object[].class, type.parameterCount() - 1);
+        site.setTarget(site.fallback);
+        return site;
+    }
+
+    public static CallSite bootstrapInvoke(MethodHandles.Lookup lookup, String operation, MethodType type,
+            String name, int line) {
+        InvokeCache site = new InvokeCache(type, identifier(name, line), interpreterOf(lookup.lookupClass()));
+        site.fallback = INVOKE_FALLBACK.bindTo(site).asCollector(Object[].class, type.parameterCount() - 1);
+        site.setTarget(site.fallback);
+        return site;
+    }
+
+    public static CallSite bootstrapProperty(MethodHandles.Lookup lookup, String operation, MethodType type,
+            String name, int line) {
+        MethodHandle target = operation.equals("get") ? GET_PROPERTY : SET_PROPERTY;
+        return new ConstantCallSite(MethodHandles.insertArguments(target, 0, identifier(name, line),
+                new PropertyCache()));
+    }
+
+    // Programs compiled ahead of time are loaded like any other class and share these
+    private static synchronized Globals globalsOf(Class<?> generated) {
+        ClassLoader loader = generated.getClassLoader();
+        if (loader instanceof JvmClassLoader) return ((JvmClassLoader) loader).globals;
+
+        if (compiledGlobals == null) {
+            compiledGlobals = new Globals();
+            Natives.define(compiledGlobals);
+        }
+        return compiledGlobals;
+    }
+
+    // A program compiled ahead of time has nothing the Interpreter ran, so it gets none
+    private static Interpreter interpreterOf(Class<?> generated) {
+        ClassLoader loader = generated.getClassLoader();
+        return loader instanceof JvmClassLoader ? ((JvmClassLoader) loader).fallback : null;
+    }
+
+    public static CallSite bootstrapGlobal(MethodHandles.Lookup lookup, String operation, MethodType type,
+            String name, int line) {
+        Globals globals = globalsOf(lookup.lookupClass());
+        MethodHandle target;
+        switch (operation) {
+            case "get": target = GET_GLOBAL; break;
+            case "set": target = SET_GLOBAL; break;
+            default: target = DEFINE_GLOBAL; break;
+        }
+        return new ConstantCallSite(MethodHandles.insertArguments(target, 0, globals, globals.slot(name),
+                identifier(name, line)));
+    }
+
+    public static CallSite bootstrapConstant(MethodHandles.Lookup lookup, String name, MethodType type,
+            Object value) {
+        return new ConstantCallSite(MethodHandles.constant(Object.class, value));
+    }
+
+    public static CallSite bootstrapClosure(MethodHandles.Lookup lookup, String name, MethodType type,
+            MethodHandle handle, String functionName, int arity, int isInitializer, int isMethod) {
+        JvmFunction.Code code = new JvmFunction.Code(functionName, arity, isInitializer != 0, isMethod != 0,
+                handle);
+        return new ConstantCallSite(MethodHandles.insertArguments(MAKE_CLOSURE, 0, code));
+    }
+
+    public static CallSite bootstrapSuper(MethodHandles.Lookup lookup, String name, MethodType type,
+            String method, int line, int depth, int thisDepth) {
+        return new ConstantCallSite(MethodHandles.insertArguments(GET_SUPER, 0, identifier(method, line), depth,
+                thisDepth));
+    }
+
+    private static Object callFallback(InlineCache site, Object callee, Object[] arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            System.out.println(callee);
+            throw new RuntimeError(at(site.line), "Can only call functions and classes");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(at(site.line),
+                    "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+
+        if (callee instanceof JvmFunction) {
+            JvmFunction compiled = (JvmFunction) callee;
+            if (site.relinks++ < MAX_RELINKS) {
+                site.setTarget(directCall(site, compiled.code));
+            }
+            return compiled.invoke(compiled.receiver, arguments);
+        }
+        return function.call(site.interpreter, arguments);
+    }
+
+    private static Object invokeFallback(InvokeCache site, Object object, Object[] arguments) {
+        if (!(object instanceof LoxInstance)) {
+            return callFallback(site, getProperty(site.name, site.cache, object), arguments);
+        }
+
+        LoxInstance receiver = (LoxInstance) object;
+        LoxMethod method = site.cache.findMethod(receiver, site.name);
+        if (method == null) {
+            return callFallback(site, site.cache.get(receiver, site.name), arguments);
+        }
+        if (!(method instanceof JvmFunction) || arguments.length != method.arity()) {
+            return callFallback(site, method.bind(receiver), arguments);
+        }
+
+        JvmFunction compiled = (JvmFunction) method;
+        if (site.relinks++ < MAX_RELINKS) {
+            site.setTarget(directInvoke(site, compiled, receiver.shape));
+        }
+        return compiled.invoke(receiver, arguments);
+    }
+
+    private static MethodHandle directCall(InlineCache site, JvmFunction.Code code) {
+        MethodType type = site.type();
+        MethodHandle target;
+        if (!code.isMethod) {
+            target = MethodHandles.filterArguments(code.handle, 0, CLOSURE_OF);
+        } else {
+            // (function, function, arguments) with the closure and the receiver taken from the same function
+            target = MethodHandles.filterArguments(code.handle, 0, CLOSURE_OF, RECEIVER_OF);
+            int[] reorder = new int[type.parameterCount() + 1];
+            for (int i = 1; i < reorder.length; ++i) {
+                reorder[i] = i - 1;
+            }
+            target = MethodHandles.permuteArguments(target, type, reorder);
+        }
+        MethodHandle test = MethodHandles.dropArguments(MethodHandles.insertArguments(HAS_CODE, 1, code),
+                1, type.parameterList().subList(1, type.parameterCount()));
+        return MethodHandles.guardWithTest(test, target, site.fallback);
+    }
+
+    // A shape belongs to a single class, so it also fixes which method the name finds
+    private static MethodHandle directInvoke(InvokeCache site, JvmFunction method, Shape shape) {
+        MethodType type = site.type();
+        MethodHandle target = MethodHandles.insertArguments(method.code.handle, 0, method.closure);
+        MethodHandle test = MethodHandles.dropArguments(MethodHandles.insertArguments(HAS_SHAPE, 1, shape),
+                1, type.parameterList().subList(1, type.parameterCount()));
+        return MethodHandles.guardWithTest(test, target, site.fallback);
+    }
+
+    private static Environment closureOf(Object function) {
+        return ((JvmFunction) function).closure;
+    }
+
+    private static Object receiverOf(Object function) {
+        return ((JvmFunction) function).receiver;
+    }
+
+    private static boolean hasShape(Object object, Shape shape) {
+        return object instanceof LoxInstance && ((LoxInstance) object).shape == shape;
+    }
+
+    private static boolean hasCode(Object callee, JvmFunction.Code code) {
+        return callee instanceof JvmFunction && ((JvmFunction) callee).code == code;
+    }
+
+    private static Object makeClosure(JvmFunction.Code code, Environment closure) {
+        return new JvmFunction(code, closure);
+    }
+
+    private static Object getProperty(Token name, PropertyCache cache, Object object) {
+        if (object instanceof LoxInstance) {
+            return cache.get((LoxInstance) object, name);
+        } else if (object instanceof LoxClass) {
+            return ((LoxClass) object).getStaticMethod(name.lexeme);
+        }
+        throw new RuntimeError(name,
+                "Only properties of an instance and static methods of a class can be accessed this way");
+    }
+
+    private static Object setProperty(Token name, PropertyCache cache, Object object, Object value) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields");
+        }
+        cache.set((LoxInstance) object, name, value);
+        return value;
+    }
+
+    private static Object getGlobal(Globals globals, int slot, Token name) {
+        return globals.get(slot, name);
+    }
+
+    private static Object setGlobal(Globals globals, int slot, Token name, Object value) {
+        globals.assign(slot, name, value);
+        return value;
+    }
+
+    private static void defineGlobal(Globals globals, int slot, Token name, Object value) {
+        globals.define(slot, value);
+    }
+
+    private static Object getSuper(Token method, int depth, int thisDepth, Environment environment) {
+        LoxClass superclass = (LoxClass) environment.getAt(depth, 0);
+        LoxInstance object = (LoxInstance) environment.getAt(thisDepth, 0);
+
+        LoxMethod function = superclass.findMethod(method.lexeme);
+        if (function == null) {
+            throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+        return function.bind(object);
+    }
+
+    public static Object assign(Environment environment, int depth, int slot, Object value) {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    public static Object checkSuperclass(Object superclass, int line) {
+        if (!(superclass instanceof LoxClass)) {
+            throw new RuntimeError(at(line), "A class can only inherit from another class.");
+        }
+        return superclass;
+    }
+
+    public static Object makeClass(String name, Object superclass, Object[] methods, Object[] staticMethods) {
+        Map<String, LoxMethod> methodTable = new HashMap<>();
+        for (Object method : methods) {
+            methodTable.put(((JvmFunction) method).code.name, (JvmFunction) method);
+        }
+        Map<String, LoxCallable> staticMethodTable = new HashMap<>();
+        for (Object staticMethod : staticMethods) {
+            String methodName = ((JvmFunction) staticMethod).code.name;
+            staticMethodTable.put(methodName, (JvmFunction) staticMethod);
+            System.out.println("Adding static method " + methodName + " to " + name);
+        }
+        return new LoxClass(name, methodTable, staticMethodTable, (LoxClass) superclass);
+    }
+
+    public static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    public static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    public static Object not(Object value) {
+        return !Interpreter.isTruthy(value);
+    }
+
+    public static Object negate(Object value, int line) {
+        if (value instanceof Double) return -(double) value;
+        throw new RuntimeError(at(line), "Operand must be a number");
+    }
+
+    public static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    public static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    public static Object add(Object left, Object right, int line) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        throw new RuntimeError(at(line), "Operands must be two 2 numbers or 2 strings");
+    }
+
+    public static Object subtract(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left - (double) right;
+    }
+
+    public static Object multiply(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left * (double) right;
+    }
+
+    public static Object divide(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        if ((double) right == 0) {
+            throw new RuntimeError(at(line), "Division by 0 is not allowed");
+        }
+        return (double) left / (double) right;
+    }
+
+    public static Object greater(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left > (double) right;
+    }
+
+    public static Object greaterEqual(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left >= (double) right;
+    }
+
+    public static Object less(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left < (double) right;
+    }
+
+    public static Object lessEqual(Object left, Object right, int line) {
+        checkNumbers(left, right, line);
+        return (double) left <= (double) right;
+    }
+
+    private static void checkNumbers(Object left, Object right, int line) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(at(line), "Operands must be a number");
+    }
+
+    private static Token at(int line) {
+        return new Token(TokenType.EOF, "", null, line);
+    }
+
+    private static Token identifier(String name, int line) {
+        return new Token(TokenType.IDENTIFIER, name, null, line);
+    }
+
+    private static MethodHandle findStatic(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.lookup().findStatic(JvmRuntime.class, name,
+                    MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.kebab;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The body of a top-level function or method that was only skimmed by a Parser in lazy
+ * mode. It holds the body's source until something first needs its statements, usually
+ * the function's first call, and is then parsed, resolved in the context the Resolver
+ * recorded for it and optimized if the rest of the program was. A body with errors
+ * reports them then and fails every call.
+ */
+class LazyBody extends AbstractList<Stmt> {
+    // Dropped once parsed
+    String source;
+    final int line;
+
+    // Recorded by the Resolver, and the Optimizer if there is one
+    private Stmt.Function function;
+    Resolver.FunctionType type;
+    Resolver.ClassType enclosingClass;
+    Optimizer optimizer;
+
+    private List<Stmt> statements;
+
+    LazyBody(String source, int line) {
+        this.source = source;
+        this.line = line;
+    }
+
+    /**
+     * Returns the statements of the function's body, parsing it first if it is lazy.
+     * The function's frame size is only known once this has been called.
+     */
+    static List<Stmt> load(Stmt.Function function) {
+        if (function.body instanceof LazyBody) return ((LazyBody) function.body).load();
+        return function.body;
+    }
+
+    void defer(Stmt.Function function, Resolver.FunctionType type, Resolver.ClassType enclosingClass) {
+        this.function = function;
+        this.type = type;
+        this.enclosingClass = enclosingClass;
+    }
+
+    boolean isLoaded() {
+        return statements != null;
+    }
+
+    private List<Stmt> load() {
+        if (statements != null) return statements;
+        if (function == null) throw new IllegalStateException("Function body loaded before it was resolved.");
+        if (source == null) throw hasErrors();
+
+        List<Stmt> parsed = new Parser(new Scanner(source, line).scanTokens()).parse();
+        source = null;
+        if (parsed.contains(null) || !new Resolver().resolveBody(function, parsed, type, enclosingClass)) {
+            throw hasErrors();
+        }
+
+        statements = optimizer != null ? optimizer.optimize(parsed) : parsed;
+        return statements;
+    }
+
+    private RuntimeError hasErrors() {
+        return new RuntimeError(function.name, "Function '" + function.name.lexeme + "' has errors.");
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return load().get(index);
+    }
+
+    @Override
+    public int size() {
+        return load().size();
+    }
+}
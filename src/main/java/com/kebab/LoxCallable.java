@@ -1,8 +1,6 @@
 package com.kebab;
 
-import java.util.List;
-
 public interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
 }
@@ -1,34 +1,48 @@
 package com.kebab;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     private final String name;
-    private final Map<String, LoxFunction> methods;
-    private final Map<String, LoxFunction> staticMethods;
-    private final LoxClass superclass;
+    // Own methods and every inherited one they don't override, so lookups never walk the superclasses
+    private final Map<String, LoxMethod> methods;
+    private final Map<String, LoxCallable> staticMethods;
+    private final LoxMethod initializer;
+    private final int arity;
+    // Shape of a new instance, before any field is set
+    final Shape rootShape = new Shape(this);
+    private int expectedFields = 0;
 
-    LoxClass(String name, Map<String, LoxFunction> methods, Map<String, LoxFunction> staticMethods, LoxClass superclass) {
+    LoxClass(String name, Map<String, LoxMethod> methods, Map<String, LoxCallable> staticMethods, LoxClass superclass) {
         this.name = name;
-        this.methods = methods;
         this.staticMethods = staticMethods;
-        this.superclass = superclass;
+
+        if (superclass != null) {
+            this.methods = new HashMap<>(superclass.methods);
+            this.methods.putAll(methods);
+        } else {
+            this.methods = methods;
+        }
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
 	@Override
 	public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer != null) return initializer.arity();
-        return 0;
+        return arity;
 	}
 
+    LoxMethod initializer() {
+        return initializer;
+    }
+
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
+	public Object call(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.callMethod(instance, interpreter, arguments);
         }
         return instance;
 	}
@@ -38,18 +52,20 @@ public class LoxClass implements LoxCallable {
         return "<class " + name + ">";
     }
 
+    int expectedFields() {
+        return expectedFields;
+    }
+
+    void expectFields(int count) {
+        if (count > expectedFields) expectedFields = count;
+    }
+
     public String getName() {
         return name;
     }
 
-	public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+	public LoxMethod findMethod(String name) {
+        return methods.get(name);
 	}
 
 	public Object getStaticMethod(String name) {
@@ -2,15 +2,28 @@ package com.kebab;
 
 import java.util.List;
 
-public class LoxFunction implements LoxCallable {
+public class LoxFunction implements LoxMethod {
     private final Stmt.Function declaration;
+    // The declaration's body, once it has been loaded by the first call
+    private List<Stmt> body;
     private final Environment closure;
     private final boolean isInitializer;
+    // Methods take 'this' in slot 0, so their parameters start at 1
+    final int firstParameter;
+    // Set on a method bound by bind()
+    private final LoxInstance receiver;
     
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, boolean isMethod) {
+        this(declaration, closure, isInitializer, isMethod ? 1 : 0, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, int firstParameter,
+            LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.firstParameter = firstParameter;
+        this.receiver = receiver;
     }
 
 	@Override
@@ -19,41 +32,50 @@ public class LoxFunction implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); ++i) {
-            Object argument = arguments.get(i);
-            if (argument instanceof Expr.Lambda) {
-                Expr.Lambda lambda = (Expr.Lambda) argument;
-                Stmt.Function functionStmt = new Stmt.Function(declaration.params.get(i), lambda.params, lambda.body);
-                LoxFunction function = new LoxFunction(functionStmt, closure, false);
-                environment.define(declaration.params.get(i).lexeme, function);
-                continue;
-            }
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
-
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (ReturnException returnValue) {
-            if (isInitializer) {
-                return closure.getAt(0, "this");
-            }
-            return returnValue.value;
-        }
-
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+	public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, newFrame(receiver, arguments));
 	}
 
+    @Override
+    public Object callMethod(LoxInstance receiver, Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, newFrame(receiver, arguments));
+    }
+
+    private Environment newFrame(LoxInstance receiver, Object[] arguments) {
+        Environment frame = newFrame(receiver);
+        System.arraycopy(arguments, 0, frame.values, firstParameter, arguments.length);
+        return frame;
+    }
+
+    /**
+     * Creates the environment a call runs in, with the receiver of a method in place.
+     * The caller fills in the arguments, from slot {@link #firstParameter} on.
+     */
+    Environment newFrame() {
+        return newFrame(receiver);
+    }
+
+    Environment newFrame(LoxInstance receiver) {
+        if (body == null) body = LazyBody.load(declaration);
+        Environment frame = new Environment(closure, declaration.frameSize);
+        if (firstParameter > 0) frame.values[0] = receiver;
+        return frame;
+    }
+
+    Object invoke(Interpreter interpreter, Environment frame) {
+        interpreter.executeBlock(body, frame);
+        Object result = interpreter.returnValue();
+        if (isInitializer) return frame.values[0];
+        return result;
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
     }
 
+    @Override
 	public LoxFunction bind(LoxInstance loxInstance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", loxInstance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, firstParameter, loxInstance);
 	}
 }
@@ -1,33 +1,50 @@
 package com.kebab;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
-        this.klass = klass;
+        this.shape = klass.rootShape;
+        // Sized for the fields earlier instances of the class ended up with
+        this.fields = new Object[klass.expectedFields()];
     }
 
     @Override
     public String toString() {
-        return "<" + klass.getName() + " instance>";
+        return "<" + shape.klass.getName() + " instance>";
     }
 
 	public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.lexeme);
+        if (index >= 0) {
+            return fields[index];
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxMethod method = shape.klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
-        
+
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
 	}
 
 	public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.lexeme);
+        if (index < 0) {
+            index = shape.size();
+            reshape(shape.withField(name.lexeme));
+        }
+        fields[index] = value;
 	}
+
+    /**
+     * Moves this instance to a shape with more fields.
+     */
+    void reshape(Shape shape) {
+        this.shape = shape;
+        if (fields.length < shape.size()) {
+            fields = Arrays.copyOf(fields, shape.size());
+        }
+    }
 }
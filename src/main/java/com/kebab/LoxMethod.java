@@ -0,0 +1,14 @@
+package com.kebab;
+
+import java.util.List;
+
+/**
+ * A callable that can live in a class's method table and be bound to an instance.
+ * Methods get their receiver in the slot 0 of their frame, so a call site that
+ * already has the instance can use {@link #callMethod} instead of binding first.
+ */
+public interface LoxMethod extends LoxCallable {
+    LoxMethod bind(LoxInstance instance);
+
+    Object callMethod(LoxInstance receiver, Interpreter interpreter, Object[] arguments);
+}
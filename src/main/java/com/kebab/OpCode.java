@@ -0,0 +1,67 @@
+package com.kebab;
+
+/**
+ * Instruction set of the {@link VirtualMachine}. Every opcode and operand takes one
+ * word of {@link Chunk#code}; the operands each instruction expects are listed next to it.
+ */
+final class OpCode {
+    private OpCode() {}
+
+    static final int CONSTANT = 0;          // constant index
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int DUP = 5;
+
+    static final int GET_LOCAL = 6;         // stack slot of the frame
+    static final int SET_LOCAL = 7;         // stack slot of the frame
+    static final int DEFINE_LOCAL = 8;      // stack slot of the frame, also assigns a local as a statement
+    static final int GET_GLOBAL = 9;        // name token constant, Globals slot
+    static final int SET_GLOBAL = 10;       // name token constant, Globals slot
+    static final int DEFINE_GLOBAL = 11;    // name token constant, Globals slot
+    static final int GET_PROPERTY = 12;     // name token constant, PropertyCache constant
+    static final int SET_PROPERTY = 13;     // name token constant, PropertyCache constant
+    static final int GET_SUPER = 14;        // depth, method token constant, replaces this under it with the method
+
+    static final int EQUAL = 15;
+    static final int NOT_EQUAL = 16;
+    static final int GREATER = 17;
+    static final int GREATER_EQUAL = 18;
+    static final int LESS = 19;
+    static final int LESS_EQUAL = 20;
+    static final int ADD = 21;
+    static final int SUBTRACT = 22;
+    static final int MULTIPLY = 23;
+    static final int DIVIDE = 24;
+    static final int NOT = 25;
+    static final int NEGATE = 26;
+
+    static final int PRINT = 27;
+    static final int JUMP = 28;             // target
+    static final int JUMP_IF_FALSE = 29;    // target, leaves the condition on the stack
+    static final int JUMP_IF_TRUE = 30;     // target, leaves the condition on the stack
+    static final int ENTER_SCOPE = 31;      // frame size
+    static final int EXIT_SCOPE = 32;
+
+    static final int CALL = 33;             // argument count
+    static final int CLOSURE = 34;          // function constant
+    static final int RETURN = 35;
+    static final int CHECK_SUPERCLASS = 36; // superclass name token constant
+    static final int CLASS = 37;            // name constant, method count, static method count, has superclass
+    static final int INVOKE = 38;           // name token constant, PropertyCache constant, argument count
+
+    static final int GET_CAPTURED = 39;     // depth, slot
+    static final int SET_CAPTURED = 40;     // depth, slot
+    static final int DEFINE_CAPTURED = 41;  // slot
+    static final int POP_JUMP_IF_FALSE = 42; // target, pops the condition
+
+    // A comparison and the jump of the 'if' or 'while' it's the condition of in one:
+    // target, pops both operands and jumps unless the comparison holds
+    static final int JUMP_UNLESS_GREATER = 43;
+    static final int JUMP_UNLESS_GREATER_EQUAL = 44;
+    static final int JUMP_UNLESS_LESS = 45;
+    static final int JUMP_UNLESS_LESS_EQUAL = 46;
+    static final int JUMP_UNLESS_EQUAL = 47;
+    static final int JUMP_UNLESS_NOT_EQUAL = 48;
+}
@@ -0,0 +1,370 @@
+package com.kebab;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a resolved program before an engine runs it. Operators on literals are
+ * folded, branches and loops with a literal condition are pruned, statements after a
+ * 'return' or 'break' and groupings are dropped, and division by a power of two becomes
+ * a multiplication. Anything that would fail at runtime, like dividing by 0 or adding a
+ * number to a string, is left for the engine to report. A node is only rebuilt when one
+ * of its children changed, and keeps what the Resolver filled in.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // What fold() returns when the operands are not constants it can combine
+    private static final Object NOT_CONSTANT = new Object();
+
+    private int folded = 0;
+    private int prunedBranches = 0;
+    private int removedStatements = 0;
+    private int removedGroupings = 0;
+    private int reducedDivisions = 0;
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); ++i) {
+            Stmt statement = optimize(statements.get(i));
+            if (statement == null) continue;
+            optimized.add(statement);
+
+            if (statement instanceof Stmt.Return || statement instanceof Stmt.Break) {
+                removedStatements += statements.size() - i - 1;
+                break;
+            }
+        }
+        return optimized;
+    }
+
+    public String statistics() {
+        return "constant folding: " + folded + " expressions folded\n"
+                + "dead branches: " + prunedBranches + " branches pruned\n"
+                + "unreachable code: " + removedStatements + " statements removed\n"
+                + "groupings: " + removedGroupings + " groupings removed\n"
+                + "strength reduction: " + reducedDivisions + " divisions reduced";
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA && left instanceof Expr.Literal) {
+            folded++;
+            return right;
+        }
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) {
+                folded++;
+                return new Expr.Literal(value);
+            }
+        }
+        if (expr.operator.type == TokenType.SLASH && right instanceof Expr.Literal) {
+            Object divisor = ((Expr.Literal) right).value;
+            if (divisor instanceof Double && hasExactReciprocal((double) divisor)) {
+                reducedDivisions++;
+                Token star = new Token(TokenType.STAR, "*", null, expr.operator.line);
+                return new Expr.Binary(left, star, new Expr.Literal(1 / (double) divisor));
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr.condition);
+        if (condition instanceof Expr.Literal) {
+            prunedBranches++;
+            return optimize(Interpreter.isTruthy(((Expr.Literal) condition).value) ? expr.left : expr.right);
+        }
+
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (condition == expr.condition && left == expr.left && right == expr.right) return expr;
+        return new Expr.Ternary(condition, left, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        removedGroupings++;
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        List<Stmt> body = optimize(expr.body);
+        Expr.Lambda lambda = new Expr.Lambda(expr.params, body);
+        lambda.frameSize = expr.frameSize;
+        lambda.frameCaptured = expr.frameCaptured;
+        return lambda;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        if (left instanceof Expr.Literal) {
+            // Decided by the left operand, or the result is the right one
+            prunedBranches++;
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            if (expr.operator.type == TokenType.OR ? truthy : !truthy) return left;
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                folded++;
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (expr.operator.type == TokenType.MINUS && value instanceof Double) {
+                folded++;
+                return new Expr.Literal(-(double) value);
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = new Stmt.Block(optimize(stmt.statements));
+        block.frameSize = stmt.frameSize;
+        block.frameCaptured = stmt.frameCaptured;
+        return block;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        Stmt.Class klass = new Stmt.Class(stmt.name, optimizeFunctions(stmt.methods),
+                optimizeFunctions(stmt.staticMethods), stmt.superclass);
+        klass.slot = stmt.slot;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) {
+            // Nothing to evaluate
+            removedStatements++;
+            return null;
+        }
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.body instanceof LazyBody) {
+            // Optimized once it's loaded
+            ((LazyBody) stmt.body).optimizer = this;
+            return stmt;
+        }
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, optimize(stmt.body));
+        function.slot = stmt.slot;
+        function.frameSize = stmt.frameSize;
+        function.frameCaptured = stmt.frameCaptured;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            prunedBranches++;
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+        }
+
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+            prunedBranches++;
+            return null;
+        }
+
+        Stmt body = orEmpty(optimize(stmt.body));
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+            default:
+                break;
+        }
+        if (!(left instanceof Double && right instanceof Double)) return NOT_CONSTANT;
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return b == 0 ? NOT_CONSTANT : a / b;
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            default: return NOT_CONSTANT;
+        }
+    }
+
+    // Multiplying by the reciprocal gives the same result as dividing only for powers of two
+    private static boolean hasExactReciprocal(double divisor) {
+        double magnitude = Math.abs(divisor);
+        int exponent = Math.getExponent(magnitude);
+        return exponent >= -1022 && exponent <= 1022 && magnitude == Math.scalb(1.0, exponent);
+    }
+
+    private static Stmt orEmpty(Stmt statement) {
+        return statement != null ? statement : new Stmt.Block(new ArrayList<Stmt>());
+    }
+
+    private List<Stmt.Function> optimizeFunctions(List<Stmt.Function> functions) {
+        List<Stmt.Function> optimized = new ArrayList<>(functions.size());
+        for (Stmt.Function function : functions) {
+            optimized.add((Stmt.Function) optimize(function));
+        }
+        return optimized;
+    }
+
+    // Returns the same list if no element changed
+    private List<Expr> optimizeAll(List<Expr> expressions) {
+        List<Expr> optimized = null;
+        for (int i = 0; i < expressions.size(); ++i) {
+            Expr expression = optimize(expressions.get(i));
+            if (optimized == null && expression != expressions.get(i)) {
+                optimized = new ArrayList<>(expressions.subList(0, i));
+            }
+            if (optimized != null) optimized.add(expression);
+        }
+        return optimized != null ? optimized : expressions;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+}
@@ -4,14 +4,47 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Parses statements by recursive descent and the binary operators below a ternary by
+ * precedence climbing, looking up how tightly each operator binds in a table instead of
+ * descending through a method per precedence level.
+ */
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;               
+    private static final int PRECEDENCE_OR = 1;
+    // How tightly each binary operator binds by token type, 0 for tokens that aren't one
+    private static final int[] PRECEDENCES = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCES[TokenType.OR.ordinal()] = PRECEDENCE_OR;
+        PRECEDENCES[TokenType.AND.ordinal()] = 2;
+        PRECEDENCES[TokenType.BANG_EQUAL.ordinal()] = 3;
+        PRECEDENCES[TokenType.EQUAL_EQUAL.ordinal()] = 3;
+        PRECEDENCES[TokenType.LESS.ordinal()] = 4;
+        PRECEDENCES[TokenType.LESS_EQUAL.ordinal()] = 4;
+        PRECEDENCES[TokenType.GREATER.ordinal()] = 4;
+        PRECEDENCES[TokenType.GREATER_EQUAL.ordinal()] = 4;
+        PRECEDENCES[TokenType.PLUS.ordinal()] = 5;
+        PRECEDENCES[TokenType.MINUS.ordinal()] = 5;
+        PRECEDENCES[TokenType.STAR.ordinal()] = 6;
+        PRECEDENCES[TokenType.SLASH.ordinal()] = 6;
+    }
+
+    private final TokenBuffer tokens;
+    // Whether top-level function bodies are skimmed, see skimBody()
+    private final boolean lazy;
     private int current = 0;
+    // How many blocks deep the parser is
+    private int depth = 0;
 
-    public Parser(List<Token> tokens) {
+    public Parser(TokenBuffer tokens) {
+        this(tokens, false);
+    }
+
+    public Parser(TokenBuffer tokens, boolean lazy) {
         this.tokens = tokens;
+        this.lazy = lazy;
     }
 
     public List<Stmt> parse() {
@@ -23,6 +56,19 @@ public class Parser {
         return statements;
     }
 
+    /**
+     * Parses the next top-level declaration, or returns null at the end of the source.
+     * Declarations with syntax errors are reported and skipped.
+     */
+    public Stmt next() {
+        while (!isAtEnd()) {
+            Stmt statement = declaration();
+            if (statement != null) return statement;
+        }
+
+        return null;
+    }
+
     private Stmt declaration() {
         try {
             if (match(TokenType.CLASS)) return classDeclaration();
@@ -36,11 +82,11 @@ public class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect class name");
+        Token name = consumeName("Expect class name");
 
         Expr.Variable superclass = null;
         if (match(TokenType.EXTENDS)) {
-            consume(TokenType.IDENTIFIER, "Expect superclass name");
+            consumeName("Expect superclass name");
             superclass = new Expr.Variable(previous());
         }
 
@@ -61,7 +107,7 @@ public class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
+        Token name = consumeName("Expect " + kind + " name.");
         consume(TokenType.LEFT_PARENTHESIS, "Expected '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PARANTHESIS)) {
@@ -69,18 +115,18 @@ public class Parser {
                 if (parameters.size() >= 255) {
                     error(peek(), "Can't have more then 255 parameters.");
                 }
-                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name"));
+                parameters.add(consumeName("Expect parameter name"));
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_PARANTHESIS, "Expected ')' after parameters");
 
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = lazy && depth == 0 ? skimBody() : block();
         return new Stmt.Function(name, parameters, body);
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+        Token name = consumeName("Expect variable name.");
 
         Expr initializer = null;
         if (match(TokenType.EQUAL)) {
@@ -182,8 +228,13 @@ public class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd())  {
-            statements.add(declaration());
+        depth++;
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd())  {
+                statements.add(declaration());
+            }
+        } finally {
+            depth--;
         }
 
         consume(TokenType.RIGHT_BRACE, "Expected '}' after block.");
@@ -191,6 +242,31 @@ public class Parser {
         return statements;
     }
 
+    /**
+     * Skips a body just past its '{' to the brace that closes it, keeping its text to be
+     * parsed the first time it's needed. Its tokens are still scanned, so errors in those
+     * are reported now, but syntax errors only once it's parsed: never, for a function
+     * that's never called.
+     */
+    private List<Stmt> skimBody() {
+        int line = tokens.line(current - 1);
+        int position = tokens.keepTextAfter(current - 1);
+        int braces = 1;
+        while (!isAtEnd()) {
+            TokenType type = tokens.type(current);
+            if (type == TokenType.LEFT_BRACE) {
+                braces++;
+            } else if (type == TokenType.RIGHT_BRACE && --braces == 0) {
+                break;
+            }
+            advance();
+        }
+
+        String text = tokens.textBefore(current, position);
+        consume(TokenType.RIGHT_BRACE, "Expected '}' after block.");
+        return new LazyBody(text, line);
+    }
+
     private Stmt whileStatement() {
         consume(TokenType.LEFT_PARENTHESIS, "Expect '(' after 'while'");
         Expr condition = expression();
@@ -254,7 +330,7 @@ public class Parser {
                 if (parameters.size() >= 255) {
                     error(peek(), "Can't have more then 255 parameters");
                 }
-                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name"));
+                parameters.add(consumeName("Expect parameter name"));
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_BRACKET, "Expected ']' after parameters");
@@ -265,87 +341,37 @@ public class Parser {
     }
 
     private Expr ternary() {
-        Expr expr = or();
+        Expr expr = binary(PRECEDENCE_OR);
         
         if (match(TokenType.QUESTION)) {
-            Expr left = or();
+            Expr left = binary(PRECEDENCE_OR);
             if (!match(TokenType.COLON)) {
                 throw error(peek(), "Expected ':' to complete ternary operator '?:'. Usage <condition> ? <expression 1> : <expression 2>");
             }
-            Expr right = or();
+            Expr right = binary(PRECEDENCE_OR);
             expr = new Expr.Ternary(expr, left, right);
         }
 
         return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(TokenType.LESS_EQUAL, TokenType.GREATER_EQUAL, TokenType.GREATER, TokenType.LESS)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr factor() {
+    // Parses operators binding at least as tightly as the precedence, all left-associative
+    private Expr binary(int precedence) {
         Expr expr = unary();
 
-        while (match(TokenType.STAR, TokenType.SLASH)) {
+        while (true) {
+            TokenType type = tokens.type(current);
+            int infix = PRECEDENCES[type.ordinal()];
+            if (infix < precedence) break;
+
+            advance();
             Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr right = binary(infix + 1);
+            if (type == TokenType.OR || type == TokenType.AND) {
+                expr = new Expr.Logical(expr, operator, right);
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
 
         return expr;
@@ -367,7 +393,7 @@ public class Parser {
             if (match(TokenType.LEFT_PARENTHESIS)) {
                 expr = finishCall(expr);
             } else if (match(TokenType.DOT)) {
-                Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'");
+                Token name = consumeName("Expect property name after '.'");
                 expr = new Expr.Get(expr, name);
             }
             else {
@@ -389,7 +415,8 @@ public class Parser {
             } while (match(TokenType.COMMA));
         }
 
-        Token paren = consume(TokenType.RIGHT_PARANTHESIS, "Expect ')' after arguments");
+        consume(TokenType.RIGHT_PARANTHESIS, "Expect ')' after arguments");
+        Token paren = previous();
 
         return new Expr.Call(callee, paren, arguments);
     }
@@ -405,7 +432,7 @@ public class Parser {
         if (match(TokenType.SUPER)) {
             Token keyword = previous();
             consume(TokenType.DOT, "Expect '.' after 'super'.");
-            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name");
+            Token method = consumeName("Expect superclass method name");
             return new Expr.Super(keyword, method);
         }
         if (match(TokenType.LEFT_PARENTHESIS)) {
@@ -417,35 +444,45 @@ public class Parser {
         throw error(peek(), "Incomplete syntax");
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
 
+    private Token consumeName(String message) {
+        consume(TokenType.IDENTIFIER, message);
+        return previous();
+    }
+
     private ParseError error(Token token, String message) {
         App.error(token, message);
         return new ParseError();
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
     }
 
+    private boolean match(TokenType first, TokenType second) {
+        return match(first) || match(second);
+    }
+
     private void synchronize() {
         advance();
         
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) return;
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
 				case AND:
 				case CLASS:
 				case FOR:
@@ -465,23 +502,22 @@ public class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 }
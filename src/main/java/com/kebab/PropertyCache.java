@@ -0,0 +1,95 @@
+package com.kebab;
+
+/**
+ * An inline cache for one property get or set site. It remembers the last few instance
+ * shapes seen at the site along with where the property was found for each: a field
+ * slot, or a method of the class. A shape fixes both the field layout and the class and
+ * neither changes once created, so entries never go stale. A site that sees more than
+ * {@link #SIZE} shapes is megamorphic and does the full lookup for the extra ones.
+ */
+public class PropertyCache {
+    private static final int SIZE = 4;
+
+    private final Shape[] shapes = new Shape[SIZE];
+    // Gets: the field's slot, or -1 if the property is the method in 'methods'.
+    // Sets: the field's slot in the shape the instance has after the set, in 'transitions'.
+    private final int[] indexes = new int[SIZE];
+    private final LoxMethod[] methods = new LoxMethod[SIZE];
+    private final Shape[] transitions = new Shape[SIZE];
+    private int count = 0;
+
+    public Object get(LoxInstance instance, Token name) {
+        int entry = find(instance.shape, name);
+        if (entry < 0) return instance.get(name);
+
+        int index = indexes[entry];
+        if (index >= 0) return instance.fields[index];
+        return methods[entry].bind(instance);
+    }
+
+    /**
+     * Returns the method the property names, unbound, or null if it is a field.
+     */
+    public LoxMethod findMethod(LoxInstance instance, Token name) {
+        int entry = find(instance.shape, name);
+        if (entry >= 0) return methods[entry];
+
+        if (instance.shape.indexOf(name.lexeme) >= 0) return null;
+        LoxMethod method = instance.shape.klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return method;
+    }
+
+    /**
+     * Returns the entry for a get of the property on the shape, adding it on a miss, or -1
+     * once the cache is full.
+     */
+    private int find(Shape shape, Token name) {
+        for (int i = 0; i < count; ++i) {
+            if (shapes[i] == shape) return i;
+        }
+        if (count == SIZE) return -1;
+
+        int index = shape.indexOf(name.lexeme);
+        LoxMethod method = null;
+        if (index < 0) {
+            method = shape.klass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+            }
+        }
+        shapes[count] = shape;
+        indexes[count] = index;
+        methods[count] = method;
+        return count++;
+    }
+
+    public void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; ++i) {
+            if (shapes[i] == shape) {
+                if (transitions[i] != shape) instance.reshape(transitions[i]);
+                instance.fields[indexes[i]] = value;
+                return;
+            }
+        }
+
+        int index = shape.indexOf(name.lexeme);
+        Shape next = shape;
+        if (index < 0) {
+            index = shape.size();
+            next = shape.withField(name.lexeme);
+        }
+        if (count < SIZE) {
+            shapes[count] = shape;
+            indexes[count] = index;
+            transitions[count] = next;
+            count++;
+        }
+
+        if (next != shape) instance.reshape(next);
+        instance.fields[index] = value;
+    }
+}
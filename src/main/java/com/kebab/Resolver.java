@@ -1,19 +1,21 @@
 package com.kebab;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private enum ClassType {
+    enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     }
 
-    private enum FunctionType {
+    enum FunctionType {
         NONE,
         FUNCTION,
         INITIALIAER,
@@ -26,19 +28,92 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         WHILE
     }
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private static class Local {
+        final int slot;
+        // The name in the declaration, null for 'this' and 'super'
+        final Token declaration;
+        boolean defined = false;
+
+        Local(int slot, Token declaration) {
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    /**
+     * The names declared in a function body, block or the class scope holding 'super'.
+     * A scope that gets an environment at runtime is its own frame. A block nothing in
+     * which is captured by a closure is merged into the frame of its enclosing scope,
+     * where its locals take slots that are handed out again once the block ends.
+     */
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        final Scope frame;
+        final boolean isFunction;
+        // Used by frames only: the next free slot, the most slots used at once and whether
+        // a nested function uses any of them
+        int next = 0;
+        int size = 0;
+        boolean captured = false;
+
+        Scope(Scope frame, boolean isFunction) {
+            this.frame = frame != null ? frame : this;
+            this.isFunction = isFunction;
+        }
+
+        boolean isFrame() {
+            return frame == this;
+        }
+    }
+
+    private final Stack<Scope> scopes = new Stack<>();
     private final Map<String, Boolean> globalScope = new HashMap<String, Boolean>();
+    // Declarations read or assigned from a function nested in their scope, found by the first pass
+    private final Set<Token> captured = new HashSet<>();
+    private boolean reportErrors = true;
+    private boolean hadError = false;
 
     private ClassType currentClass = ClassType.NONE;
     private FunctionType currentFunction = FunctionType.NONE;
     private WhileType currentWhile = WhileType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver() {
     }
 
+    /**
+     * Resolves the program twice: the first pass reports errors and finds the captured
+     * locals, the second lays out the frames knowing which blocks can be merged. A program
+     * can be resolved a few top-level statements at a time, the globals declared so far are
+     * remembered between calls.
+     */
     public void resolve(List<Stmt> statements) {
+        resolveAll(statements);
+
+        reportErrors = false;
+        resolveAll(statements);
+        reportErrors = true;
+    }
+
+    /**
+     * Resolves the body of a function the Parser skimmed, in the context recorded for it
+     * when its declaration was resolved, in two passes like a program. Returns false if
+     * it has errors.
+     */
+    boolean resolveBody(Stmt.Function function, List<Stmt> body, FunctionType type, ClassType enclosingClass) {
+        currentClass = enclosingClass;
+        if (enclosingClass == ClassType.SUBCLASS) {
+            beginScope();
+            addLocal("super", null).defined = true;
+        }
+
+        resolveFunction(function, body, type);
+        reportErrors = false;
+        resolveFunction(function, body, type);
+        reportErrors = true;
+        return !hadError;
+    }
+
+    private void resolveAll(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
@@ -47,7 +122,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name);
         return null;
     }
 
@@ -81,13 +157,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLambdaExpr(Expr.Lambda expr) {
-        beginScope();
+        FunctionType enclosingFunction = currentFunction;
+        currentFunction = FunctionType.FUNCTION;
+
+        beginFunctionScope();
         for (Token param : expr.params) {
             declare(param);
             define(param);
         }
-        resolve(expr.body);
-        endScope();
+        resolveAll(expr.body);
+        expr.frameCaptured = scopes.peek().captured;
+        expr.frameSize = endScope();
+
+        currentFunction = enclosingFunction;
         return null;
     }
 
@@ -113,21 +195,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            App.error(expr.keyword, "Cannot use 'super' outisde of a class");
+            error(expr.keyword, "Cannot use 'super' outisde of a class");
         } else if (currentClass == ClassType.CLASS) {
-            App.error(expr.keyword, "Cannot user 'super' without inheriting from a superclass");
+            error(expr.keyword, "Cannot user 'super' without inheriting from a superclass");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword.lexeme);
+        expr.thisDepth = resolveDepth("this");
         return null;
 	}
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            App.error(expr.keyword, "Can't use 'this' outside of a class.");
+            error(expr.keyword, "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword);
+        expr.slot = resolveSlot(expr.keyword);
         return null;
     }
 
@@ -147,27 +231,47 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            App.error(expr.name, "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                error(expr.name, "Can't read local variable in its own initializer.");
+            }
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name);
         return null;
     }
 
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing needs no scope, and gets no environment
+        if (!declaresLocals(stmt.statements)) {
+            resolveAll(stmt.statements);
+            stmt.frameSize = 0;
+            return null;
+        }
+
+        if (!scopes.isEmpty() && !capturesLocals(stmt.statements)) {
+            scopes.push(new Scope(scopes.peek().frame, false));
+            resolveAll(stmt.statements);
+            endScope();
+            stmt.frameSize = 0;
+            return null;
+        }
+
         beginScope();
-        resolve(stmt.statements);
-        endScope();
+        resolveAll(stmt.statements);
+        stmt.frameCaptured = scopes.peek().captured;
+        stmt.frameSize = endScope();
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
         if (currentWhile == WhileType.NONE) {
-            App.error(stmt.token, "Can't break from outside a loop");
+            error(stmt.token, "Can't break from outside a loop");
         }
         return null;
     }
@@ -177,30 +281,28 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
         
         if (stmt.superclass != null) {
             if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-                App.error(stmt.superclass.name, "A class cannot inherit from itself");
+                error(stmt.superclass.name, "A class cannot inherit from itself");
             } else {
                 currentClass = ClassType.SUBCLASS;
                 resolve(stmt.superclass);
             }
             beginScope();
-            scopes.peek().put("super", true);
+            addLocal("super", null).defined = true;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             resolveFunction(method, FunctionType.METHOD);
         }
-        for (Stmt.Function staticMethod : stmt.methods) {
+
+        // Static methods are never bound, so they have no 'this'
+        for (Stmt.Function staticMethod : stmt.staticMethods) {
             resolveFunction(staticMethod, FunctionType.STATIC_METHOD);
         }
-        endScope();
 
         if (stmt.superclass != null) {
             endScope();
@@ -218,7 +320,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -243,11 +345,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            App.error(stmt.keyword, "Can't return from outside a function");
+            error(stmt.keyword, "Can't return from outside a function");
         }
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIAER) {
-                App.error(stmt.keyword, "Can't return a value from a constructor");
+                error(stmt.keyword, "Can't return a value from a constructor");
             }
             resolve(stmt.value);
         }
@@ -256,7 +358,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -275,26 +377,89 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        if (function.body instanceof LazyBody) {
+            // Resolved when it's loaded, only top-level functions and methods are lazy
+            ((LazyBody) function.body).defer(function, type, currentClass);
+            return;
+        }
+        resolveFunction(function, function.body, type);
+    }
+
+    private void resolveFunction(Stmt.Function function, List<Stmt> body, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
-        beginScope();
+        beginFunctionScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIAER) {
+            // The receiver is passed in the slot 0 of the method's own frame, before the parameters
+            addLocal("this", null).defined = true;
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
-        endScope();
+        resolveAll(body);
+        function.frameCaptured = scopes.peek().captured;
+        function.frameSize = endScope();
 
         currentFunction = enclosingFunction;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private int resolveDepth(Token name) {
+        return resolveDepth(name.lexeme);
+    }
+
+    /**
+     * Returns how many environments up from the current one the local is, or -1 for a
+     * global. Marks the local and its frame captured if it is used from inside a nested
+     * function.
+     */
+    private int resolveDepth(String name) {
+        int depth = 0;
+        boolean crossedFunction = false;
         for (int i = scopes.size() - 1; i >= 0; --i) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            Scope scope = scopes.get(i);
+            Local local = scope.locals.get(name);
+            if (local != null) {
+                if (crossedFunction) {
+                    if (local.declaration != null) captured.add(local.declaration);
+                    scope.frame.captured = true;
+                }
+                return depth;
             }
+            if (scope.isFrame()) depth++;
+            if (scope.isFunction) crossedFunction = true;
+        }
+        return -1;
+    }
+
+    private int resolveSlot(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local != null) return local.slot;
         }
+        return -1;
+    }
+
+    private static boolean declaresLocals(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean capturesLocals(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var && captured.contains(((Stmt.Var) statement).name)
+                    || statement instanceof Stmt.Function && captured.contains(((Stmt.Function) statement).name)
+                    || statement instanceof Stmt.Class && captured.contains(((Stmt.Class) statement).name)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void resolve(Stmt stmt) {
@@ -306,34 +471,59 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope(null, false));
     }
 
-    private void endScope() {
-        scopes.pop();
+    private void beginFunctionScope() {
+        scopes.push(new Scope(null, true));
     }
 
-    private void declare(Token name) {
-        Map<String, Boolean> scope;
+    // Returns the size of the frame if the scope was one
+    private int endScope() {
+        Scope scope = scopes.pop();
+        if (!scope.isFrame()) {
+            scope.frame.next -= scope.locals.size();
+        }
+        return scope.size;
+    }
+
+    private Local addLocal(String name, Token declaration) {
+        Scope scope = scopes.peek();
+        Scope frame = scope.frame;
+        Local local = new Local(frame.next++, declaration);
+        frame.size = Math.max(frame.size, frame.next);
+        scope.locals.put(name, local);
+        return local;
+    }
+
+    private void error(Token token, String message) {
+        if (!reportErrors) return;
+        App.error(token, message);
+        hadError = true;
+    }
+
+    private int declare(Token name) {
         if (scopes.isEmpty()) {
-            scope = globalScope;
-        } else {
-            scope = scopes.peek();
+            if (globalScope.containsKey(name.lexeme)) {
+                error(name, "A variable with this name allready exists");
+            }
+            globalScope.put(name.lexeme, false);
+            return -1;
         }
 
+        Map<String, Local> scope = scopes.peek().locals;
         if (scope.containsKey(name.lexeme)) {
-            App.error(name, "A variable with this name allready exists");
+            error(name, "A variable with this name allready exists");
+            return scope.get(name.lexeme).slot;
         }
-        scope.put(name.lexeme, false);
+        return addLocal(name.lexeme, name).slot;
     }
 
     private void define(Token name) {
-        Map<String, Boolean> scope;
         if (scopes.isEmpty()) {
-            scope = globalScope;
-        } else {
-            scope = scopes.peek();
+            globalScope.put(name.lexeme, true);
+            return;
         }
-        scope.put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 }
@@ -1,55 +1,81 @@
 package com.kebab;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
+/**
+ * Scans straight out of a char buffer into a {@link TokenBuffer}, recording where each
+ * token is rather than copying its lexeme. Scanning happens as the buffer is read, a
+ * token at a time.
+ *
+ * A script given as bytes, like a memory-mapped file, is decoded into the buffer a chunk
+ * at a time. Before each chunk the text no buffered token needs anymore is dropped, so
+ * the buffer stays about the size of a chunk however long the script is. Positions are
+ * counted from the start of the script either way.
+ */
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>(); 
+    private static final int CHUNK = 1 << 16;
+
+    private char[] source;
+    // Position in the script of source[0], and how much of source is filled
+    private int offset = 0;
+    private int limit;
+    // The bytes still to decode, null when the whole script is in source
+    private final ByteBuffer bytes;
+    private CharsetDecoder decoder;
+
+    private final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
-    private int line = 1;
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("func", TokenType.FUNC);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
-        keywords.put("static", TokenType.STATIC);
-        keywords.put("break", TokenType.BREAK);
-        keywords.put("extends", TokenType.EXTENDS);
-    }
+    private int line;
+    // Where text kept for keepText() starts, past the end if none is
+    private int kept = Integer.MAX_VALUE;
 
 	public Scanner(String source) {
-        this.source = source;
+        this(source, 1);
+	}
+
+    // Scans a piece of a script, counting lines from the one it starts on
+    Scanner(String source, int line) {
+        this.source = source.toCharArray();
+        this.line = line;
+        this.limit = this.source.length;
+        this.bytes = null;
+        this.tokens = new TokenBuffer(this);
+    }
+
+    public Scanner(ByteBuffer bytes, Charset charset) {
+        this.source = new char[2 * CHUNK];
+        this.limit = 0;
+        this.bytes = bytes;
+        this.line = 1;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.tokens = new TokenBuffer(this);
+
+        // Skip a byte order mark
+        if (peek() == '\uFEFF') current++;
+    }
+
+	public TokenBuffer scanTokens() {
+		return tokens;
 	}
 
-	public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Scans until the buffer has one more token, which is EOF at the end of the source
+    void scanNext() {
+        int count = tokens.size();
+        while (tokens.size() == count && !isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-		return tokens;
-	}
+        if (tokens.size() == count) tokens.add(TokenType.EOF, current, 0, line);
+    }
 
 	private void scanToken() {
         char c = advance();
@@ -135,9 +161,7 @@ public class Scanner {
         // Closing "
         advance();
 
-        // Don't get the quotes as part of the value
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        addToken(TokenType.STRING);
 	}
 
     private void number() {
@@ -150,50 +174,130 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER);
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        addToken(keyword());
+    }
+
+    // Compares the identifier in place against the keywords starting with its first letter
+    private TokenType keyword() {
+        switch (source[start - offset]) {
+            case 'a': if (isKeyword(TokenType.AND)) return TokenType.AND; break;
+            case 'b': if (isKeyword(TokenType.BREAK)) return TokenType.BREAK; break;
+            case 'c': if (isKeyword(TokenType.CLASS)) return TokenType.CLASS; break;
+            case 'e':
+                if (isKeyword(TokenType.ELSE)) return TokenType.ELSE;
+                if (isKeyword(TokenType.EXTENDS)) return TokenType.EXTENDS;
+                break;
+            case 'f':
+                if (isKeyword(TokenType.FALSE)) return TokenType.FALSE;
+                if (isKeyword(TokenType.FOR)) return TokenType.FOR;
+                if (isKeyword(TokenType.FUNC)) return TokenType.FUNC;
+                break;
+            case 'i': if (isKeyword(TokenType.IF)) return TokenType.IF; break;
+            case 'n': if (isKeyword(TokenType.NIL)) return TokenType.NIL; break;
+            case 'o': if (isKeyword(TokenType.OR)) return TokenType.OR; break;
+            case 'p': if (isKeyword(TokenType.PRINT)) return TokenType.PRINT; break;
+            case 'r': if (isKeyword(TokenType.RETURN)) return TokenType.RETURN; break;
+            case 's':
+                if (isKeyword(TokenType.SUPER)) return TokenType.SUPER;
+                if (isKeyword(TokenType.STATIC)) return TokenType.STATIC;
+                break;
+            case 't':
+                if (isKeyword(TokenType.THIS)) return TokenType.THIS;
+                if (isKeyword(TokenType.TRUE)) return TokenType.TRUE;
+                break;
+            case 'v': if (isKeyword(TokenType.VAR)) return TokenType.VAR; break;
+            case 'w': if (isKeyword(TokenType.WHILE)) return TokenType.WHILE; break;
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    private boolean isKeyword(TokenType type) {
+        String keyword = type.lexeme;
+        if (current - start != keyword.length()) return false;
+        for (int i = 1; i < keyword.length(); ++i) {
+            if (source[start - offset + i] != keyword.charAt(i)) return false;
+        }
+        return true;
     }
 
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return !isAvailable(current);
 	}
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current - offset];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!isAvailable(current + 1)) return '\0';
+        return source[current + 1 - offset];
     }
 
     private char advance() {
-        return source.charAt(current++);
+        if (isAtEnd()) return '\0';
+        return source[current++ - offset];
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current - offset] != expected) return false;
 
         current++;
         return true;
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        tokens.add(type, start, current - start, line);
+    }
+
+    String intern(SymbolTable symbols, int start, int length) {
+        return symbols.intern(source, start - offset, length);
+    }
+
+    // Stops the text from the position on being dropped, until text() copies it out
+    void keepText(int position) {
+        kept = position;
+    }
+
+    String text(int start, int end) {
+        kept = Integer.MAX_VALUE;
+        return new String(source, start - offset, end - start);
+    }
+
+    private boolean isAvailable(int position) {
+        while (position - offset >= limit) {
+            if (!decode()) return false;
+        }
+        return true;
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    // Decodes up to a chunk more of the script, returns false once it's all been decoded
+    private boolean decode() {
+        if (decoder == null) return false;
+
+        int keep = Math.min(Math.min(start, tokens.oldestStart()), kept) - offset;
+        if (keep > 0) {
+            System.arraycopy(source, keep, source, 0, limit - keep);
+            offset += keep;
+            limit -= keep;
+        }
+        if (source.length - limit < CHUNK) source = Arrays.copyOf(source, limit + 2 * CHUNK);
+
+        CharBuffer chars = CharBuffer.wrap(source, limit, CHUNK);
+        if (decoder.decode(bytes, chars, true).isUnderflow()) {
+            decoder.flush(chars);
+            decoder = null;
+        }
+
+        boolean decoded = chars.position() > limit;
+        limit = chars.position();
+        return decoded;
     }
 }
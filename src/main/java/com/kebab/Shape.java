@@ -0,0 +1,52 @@
+package com.kebab;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The field layout shared by instances of a class that had the same fields added in the
+ * same order (a hidden class). Each class has an empty root shape; adding a field moves
+ * an instance along a transition to the shape with that field appended, so instances
+ * only store the values, in {@link #size()} slots indexed by {@link #indexOf}.
+ */
+public class Shape {
+    final LoxClass klass;
+    private final Map<String, Integer> indexes;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape(LoxClass klass) {
+        this(klass, new HashMap<String, Integer>());
+    }
+
+    private Shape(LoxClass klass, Map<String, Integer> indexes) {
+        this.klass = klass;
+        this.indexes = indexes;
+    }
+
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * Returns the slot of the field, or -1 if instances of this shape don't have it.
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the shape of an instance of this shape after adding the field.
+     */
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextIndexes = new HashMap<>(indexes);
+            nextIndexes.put(name, indexes.size());
+            next = new Shape(klass, nextIndexes);
+            transitions.put(name, next);
+            klass.expectFields(next.size());
+        }
+        return next;
+    }
+}
@@ -0,0 +1,545 @@
+package com.kebab;
+
+/**
+ * Operator nodes that specialize themselves on the operand types they see. A node starts
+ * out uninitialized, picks a variant from the operands of its first evaluation and from
+ * then on runs only that variant: unboxed doubles, string concatenation, or the generic
+ * checks of {@link ExprNode}. When an operand breaks the guess the node deoptimizes to the
+ * generic variant for good, so it changes state at most twice and stays cheap to predict.
+ *
+ * Like the plain nodes every operator has its own evaluate methods, rather than sharing
+ * one that calls an overridden apply: the calls to the operands are then made from code
+ * that only that operator runs, so the JIT can still inline the few kinds of nodes each
+ * one sees and keep a whole expression in one compiled method.
+ */
+abstract class SpecializingNode extends ExprNode {
+    static final int UNINITIALIZED = 0;
+    static final int DOUBLE = 1;
+    static final int STRING = 2;
+    static final int GENERIC = 3;
+
+    int state = UNINITIALIZED;
+
+    /**
+     * Whether the node computes a number without boxing it. Other operands are evaluated
+     * and checked from the operator's own call site rather than through the inherited
+     * evaluateDouble, whose one call of evaluate sees every kind of node.
+     */
+    static boolean isUnboxed(ExprNode node) {
+        return node instanceof Arithmetic || node instanceof Negate || node instanceof Constant
+                || node instanceof LocalGet0 || node instanceof LocalGet1 || node instanceof LocalGet;
+    }
+
+    static double number(Object value) throws UnexpectedResult {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    /**
+     * Binary operators on numbers producing a number.
+     */
+    abstract static class Arithmetic extends SpecializingNode {
+        final ExprNode left;
+        final ExprNode right;
+        final Token operator;
+        final boolean leftUnboxed;
+        final boolean rightUnboxed;
+
+        Arithmetic(ExprNode left, ExprNode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+            this.leftUnboxed = isUnboxed(left);
+            this.rightUnboxed = isUnboxed(right);
+        }
+
+        abstract double apply(double a, double b);
+
+        Object generic(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return apply((double) a, (double) b);
+            }
+            throw new RuntimeError(operator, "Operands must be a number");
+        }
+
+        void specialize(Object a, Object b) {
+            state = a instanceof Double && b instanceof Double ? DOUBLE : GENERIC;
+        }
+
+        Object evaluateGeneric(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            if (state == UNINITIALIZED) specialize(a, b);
+            return generic(a, b);
+        }
+
+        double deoptimize(Object a, Object b) throws UnexpectedResult {
+            state = GENERIC;
+            Object result = generic(a, b);
+            if (result instanceof Double) return (double) result;
+            throw new UnexpectedResult(result);
+        }
+    }
+
+    static class Add extends Arithmetic {
+        Add(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        Object generic(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return (double) a + (double) b;
+            }
+            if (a instanceof String && b instanceof String) {
+                return (String) a + (String) b;
+            }
+            throw new RuntimeError(operator, "Operands must be two 2 numbers or 2 strings");
+        }
+
+        @Override
+        void specialize(Object a, Object b) {
+            if (a instanceof String && b instanceof String) {
+                state = STRING;
+            } else {
+                super.specialize(a, b);
+            }
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (state == DOUBLE) {
+                try {
+                    return evaluateDouble(environment);
+                } catch (UnexpectedResult e) {
+                    return e.result;
+                }
+            }
+            return evaluateGeneric(environment);
+        }
+
+        @Override
+        Object evaluateGeneric(Environment environment) {
+            if (state == STRING) {
+                Object a = left.evaluate(environment);
+                Object b = right.evaluate(environment);
+                if (a instanceof String && b instanceof String) {
+                    return (String) a + (String) b;
+                }
+                state = GENERIC;
+                return generic(a, b);
+            }
+            return super.evaluateGeneric(environment);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (state != DOUBLE) return super.evaluateDouble(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a + b;
+        }
+    }
+
+    static class Subtract extends Arithmetic {
+        Subtract(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a - b;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (state == DOUBLE) {
+                try {
+                    return evaluateDouble(environment);
+                } catch (UnexpectedResult e) {
+                    return e.result;
+                }
+            }
+            return evaluateGeneric(environment);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (state != DOUBLE) return super.evaluateDouble(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a - b;
+        }
+    }
+
+    static class Multiply extends Arithmetic {
+        Multiply(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a * b;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (state == DOUBLE) {
+                try {
+                    return evaluateDouble(environment);
+                } catch (UnexpectedResult e) {
+                    return e.result;
+                }
+            }
+            return evaluateGeneric(environment);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (state != DOUBLE) return super.evaluateDouble(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a * b;
+        }
+    }
+
+    static class Divide extends Arithmetic {
+        Divide(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            if (b == 0) {
+                throw new RuntimeError(operator, "Division by 0 is not allowed");
+            }
+            return a / b;
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (state == DOUBLE) {
+                try {
+                    return evaluateDouble(environment);
+                } catch (UnexpectedResult e) {
+                    return e.result;
+                }
+            }
+            return evaluateGeneric(environment);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (state != DOUBLE) return super.evaluateDouble(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            if (b == 0) {
+                throw new RuntimeError(operator, "Division by 0 is not allowed");
+            }
+            return a / b;
+        }
+    }
+
+    /**
+     * Binary operators on numbers producing a boolean, which conditions read unboxed.
+     */
+    abstract static class Comparison extends SpecializingNode {
+        final ExprNode left;
+        final ExprNode right;
+        final Token operator;
+        final boolean leftUnboxed;
+        final boolean rightUnboxed;
+
+        Comparison(ExprNode left, ExprNode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+            this.leftUnboxed = isUnboxed(left);
+            this.rightUnboxed = isUnboxed(right);
+        }
+
+        abstract boolean apply(double a, double b);
+
+        boolean generic(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return apply((double) a, (double) b);
+            }
+            throw new RuntimeError(operator, "Operands must be a number");
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            return isTruthy(environment);
+        }
+
+        boolean isTruthyGeneric(Environment environment) {
+            Object a = left.evaluate(environment);
+            Object b = right.evaluate(environment);
+            if (state == UNINITIALIZED) {
+                state = a instanceof Double && b instanceof Double ? DOUBLE : GENERIC;
+            }
+            return generic(a, b);
+        }
+
+        boolean deoptimize(Object a, Object b) {
+            state = GENERIC;
+            return generic(a, b);
+        }
+    }
+
+    static class Greater extends Comparison {
+        Greater(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a > b;
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            if (state != DOUBLE) return isTruthyGeneric(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a > b;
+        }
+    }
+
+    static class GreaterEqual extends Comparison {
+        GreaterEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a >= b;
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            if (state != DOUBLE) return isTruthyGeneric(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a >= b;
+        }
+    }
+
+    static class Less extends Comparison {
+        Less(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a < b;
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            if (state != DOUBLE) return isTruthyGeneric(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a < b;
+        }
+    }
+
+    static class LessEqual extends Comparison {
+        LessEqual(ExprNode left, ExprNode right, Token operator) {
+            super(left, right, operator);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a <= b;
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            if (state != DOUBLE) return isTruthyGeneric(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return a <= b;
+        }
+    }
+
+    static class Equal extends Comparison {
+        final boolean negated;
+
+        Equal(ExprNode left, ExprNode right, Token operator, boolean negated) {
+            super(left, right, operator);
+            this.negated = negated;
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            // Same as Double.equals, which is what Interpreter.isEqual ends up calling
+            return (Double.doubleToLongBits(a) == Double.doubleToLongBits(b)) != negated;
+        }
+
+        @Override
+        boolean generic(Object a, Object b) {
+            return Interpreter.isEqual(a, b) != negated;
+        }
+
+        @Override
+        boolean isTruthy(Environment environment) {
+            if (state != DOUBLE) return isTruthyGeneric(environment);
+
+            double a;
+            try {
+                a = leftUnboxed ? left.evaluateDouble(environment) : number(left.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(e.result, right.evaluate(environment));
+            }
+            double b;
+            try {
+                b = rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment));
+            } catch (UnexpectedResult e) {
+                return deoptimize(a, e.result);
+            }
+            return apply(a, b);
+        }
+    }
+
+    static class Negate extends SpecializingNode {
+        final ExprNode right;
+        final Token operator;
+        final boolean rightUnboxed;
+
+        Negate(ExprNode right, Token operator) {
+            this.right = right;
+            this.operator = operator;
+            this.rightUnboxed = isUnboxed(right);
+        }
+
+        @Override
+        Object evaluate(Environment environment) {
+            if (state == DOUBLE) {
+                try {
+                    return evaluateDouble(environment);
+                } catch (UnexpectedResult e) {
+                    return e.result;
+                }
+            }
+
+            Object value = right.evaluate(environment);
+            if (state == UNINITIALIZED) {
+                state = value instanceof Double ? DOUBLE : GENERIC;
+            }
+            return generic(value);
+        }
+
+        @Override
+        double evaluateDouble(Environment environment) throws UnexpectedResult {
+            if (state != DOUBLE) return super.evaluateDouble(environment);
+
+            try {
+                return -(rightUnboxed ? right.evaluateDouble(environment) : number(right.evaluate(environment)));
+            } catch (UnexpectedResult e) {
+                state = GENERIC;
+                return generic(e.result);
+            }
+        }
+
+        private double generic(Object value) {
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number");
+            }
+            return -(double) value;
+        }
+    }
+}
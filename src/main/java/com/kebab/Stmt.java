@@ -18,6 +18,8 @@ abstract class Stmt {
 
 	static class Block extends Stmt {
 		final List<Stmt> statements;
+		int frameSize = 0;
+		boolean frameCaptured = false;
 		Block (List<Stmt> statements) {
 			this.statements = statements;
 		}
@@ -51,6 +53,7 @@ abstract class Stmt {
 		final List<Stmt.Function> methods;
 		final List<Stmt.Function> staticMethods;
 		final Expr.Variable superclass;
+		int slot = -1;
 		Class (Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods, Expr.Variable superclass) {
 			this.name = name;
 			this.methods = methods;
@@ -86,6 +89,9 @@ abstract class Stmt {
 		final Token name;
 		final List<Token> params;
 		final List<Stmt> body;
+		int slot = -1;
+		int frameSize = 0;
+		boolean frameCaptured = false;
 		Function (Token name, List<Token> params, List<Stmt> body) {
 			this.name = name;
 			this.params = params;
@@ -155,6 +161,7 @@ abstract class Stmt {
 	static class Var extends Stmt {
 		final Token name;
 		final Expr initializer;
+		int slot = -1;
 		Var (Token name, Expr initializer) {
 			this.name = name;
 			this.initializer = initializer;
@@ -0,0 +1,245 @@
+package com.kebab;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A statement lowered by the {@link ClosureCompiler}. Instead of throwing, 'break' and
+ * 'return' are reported through the completion code returned by {@link #execute}; a
+ * returned value is left in the enclosing function's {@link CompiledFunction.Template}.
+ */
+abstract class StmtNode {
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int RETURN = 2;
+
+    abstract int execute(Environment environment);
+
+    static int executeAll(StmtNode[] statements, Environment environment) {
+        for (StmtNode statement : statements) {
+            int completion = statement.execute(environment);
+            if (completion != NORMAL) return completion;
+        }
+        return NORMAL;
+    }
+
+    static class Expression extends StmtNode {
+        final ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            expression.evaluate(environment);
+            return NORMAL;
+        }
+    }
+
+    static class Print extends StmtNode {
+        final ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+            return NORMAL;
+        }
+    }
+
+    static class DefineLocal extends StmtNode {
+        final int slot;
+        final ExprNode value;
+
+        DefineLocal(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            environment.values[slot] = value.evaluate(environment);
+            return NORMAL;
+        }
+    }
+
+    static class DefineGlobal extends StmtNode {
+        final Globals globals;
+        final int slot;
+        final ExprNode value;
+
+        DefineGlobal(String name, Globals globals, ExprNode value) {
+            this.globals = globals;
+            this.slot = globals.slot(name);
+            this.value = value;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            globals.define(slot, value.evaluate(environment));
+            return NORMAL;
+        }
+    }
+
+    static class Block extends StmtNode {
+        final int frameSize;
+        final StmtNode[] statements;
+
+        Block(int frameSize, StmtNode[] statements) {
+            this.frameSize = frameSize;
+            this.statements = statements;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            return executeAll(statements, new Environment(environment, frameSize));
+        }
+    }
+
+    /**
+     * A block the Resolver gave no frame of its own: it declares nothing, or its locals
+     * have slots in the enclosing frame.
+     */
+    static class Sequence extends StmtNode {
+        final StmtNode[] statements;
+
+        Sequence(StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            return executeAll(statements, environment);
+        }
+    }
+
+    static class If extends StmtNode {
+        final ExprNode condition;
+        final StmtNode thenBranch;
+        final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            if (condition.isTruthy(environment)) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return NORMAL;
+        }
+    }
+
+    static class While extends StmtNode {
+        final ExprNode condition;
+        final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            while (condition.isTruthy(environment)) {
+                int completion = body.execute(environment);
+                if (completion == BREAK) break;
+                if (completion == RETURN) return RETURN;
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Break extends StmtNode {
+        @Override
+        int execute(Environment environment) {
+            return BREAK;
+        }
+    }
+
+    static class Return extends StmtNode {
+        final ExprNode value;
+        final CompiledFunction.Template function;
+
+        Return(ExprNode value, CompiledFunction.Template function) {
+            this.value = value;
+            this.function = function;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            function.returnValue = value == null ? null : value.evaluate(environment);
+            return RETURN;
+        }
+    }
+
+    static class Class extends StmtNode {
+        final Token name;
+        final int slot;
+        final Globals globals;
+        final ExprNode superclass;
+        final Token superclassName;
+        final CompiledFunction.Template[] methods;
+        final CompiledFunction.Template[] staticMethods;
+
+        Class(Token name, int slot, Globals globals, ExprNode superclass, Token superclassName,
+                CompiledFunction.Template[] methods, CompiledFunction.Template[] staticMethods) {
+            this.name = name;
+            this.slot = slot;
+            this.globals = globals;
+            this.superclass = superclass;
+            this.superclassName = superclassName;
+            this.methods = methods;
+            this.staticMethods = staticMethods;
+        }
+
+        @Override
+        int execute(Environment environment) {
+            Object parent = null;
+            if (superclass != null) {
+                parent = superclass.evaluate(environment);
+                if (!(parent instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "A class can only inherit from another class.");
+                }
+            }
+
+            define(environment, null);
+
+            Environment closure = environment;
+            if (superclass != null) {
+                closure = new Environment(environment, 1);
+                closure.values[0] = parent;
+            }
+
+            Map<String, LoxMethod> methodTable = new HashMap<>();
+            for (CompiledFunction.Template method : methods) {
+                methodTable.put(method.name, new CompiledFunction(method, closure));
+            }
+            Map<String, LoxCallable> staticMethodTable = new HashMap<>();
+            for (CompiledFunction.Template staticMethod : staticMethods) {
+                staticMethodTable.put(staticMethod.name, new CompiledFunction(staticMethod, closure));
+                System.out.println("Adding static method " + staticMethod.name + " to " + name.lexeme);
+            }
+
+            define(environment, new LoxClass(name.lexeme, methodTable, staticMethodTable, (LoxClass) parent));
+            return NORMAL;
+        }
+
+        private void define(Environment environment, Object value) {
+            if (slot >= 0) {
+                environment.values[slot] = value;
+            } else {
+                globals.define(name.lexeme, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.kebab;
+
+/**
+ * Interns spellings the Scanner reads straight out of its buffer. The first time a name
+ * appears it becomes a String; after that every token with the same name shares that
+ * String, and a lookup compares characters in place without allocating.
+ */
+public class SymbolTable {
+    private String[] entries = new String[256];
+    private int[] hashes = new int[256];
+    private int count = 0;
+
+    public String intern(char[] chars, int start, int length) {
+        int hash = hash(chars, start, length);
+        int mask = entries.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String entry = entries[i];
+            if (entry == null) {
+                entry = new String(chars, start, length);
+                entries[i] = entry;
+                hashes[i] = hash;
+                if (++count * 2 > entries.length) grow();
+                return entry;
+            }
+            if (hashes[i] == hash && matches(entry, chars, start, length)) return entry;
+        }
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; ++i) {
+            hash = 31 * hash + chars[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String entry, char[] chars, int start, int length) {
+        if (entry.length() != length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (entry.charAt(i) != chars[start + i]) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] oldEntries = entries;
+        int[] oldHashes = hashes;
+        entries = new String[oldEntries.length * 2];
+        hashes = new int[oldEntries.length * 2];
+
+        int mask = entries.length - 1;
+        for (int j = 0; j < oldEntries.length; ++j) {
+            if (oldEntries[j] == null) continue;
+            int i = oldHashes[j] & mask;
+            while (entries[i] != null) i = (i + 1) & mask;
+            entries[i] = oldEntries[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+}
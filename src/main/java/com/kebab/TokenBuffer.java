@@ -0,0 +1,129 @@
+package com.kebab;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A window onto the tokens of a source, as parallel arrays of type, offset, length and
+ * line rather than a Token object each. Tokens are scanned when the Parser first asks for
+ * them and dropped once {@link #WINDOW} newer ones have been, so only a few are held at a
+ * time. The Parser checks types by index and only asks for a {@link Token} when the tree
+ * keeps one; its lexeme is interned in a {@link SymbolTable} and its literal read back out
+ * of the source then.
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    // How many of the latest tokens are kept, a power of two
+    private static final int WINDOW = 16;
+
+    private final Scanner scanner;
+    private final SymbolTable symbols = new SymbolTable();
+    // Number literals by lexeme, so each spelling is parsed once
+    private final Map<String, Double> numbers = new HashMap<>();
+
+    private final byte[] types = new byte[WINDOW];
+    private final int[] starts = new int[WINDOW];
+    private final int[] lengths = new int[WINDOW];
+    private final int[] lines = new int[WINDOW];
+    // Tokens scanned so far
+    private int count = 0;
+
+    // The last token handed out, so asking again for the same one doesn't copy it
+    private int lastIndex = -1;
+    private Token last;
+    // Tokens of types that are always spelled the same, by type, reused while on one line
+    private final Token[] fixed = new Token[TYPES.length];
+
+    TokenBuffer(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        int slot = count & (WINDOW - 1);
+        types[slot] = (byte) type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        lines[slot] = line;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    // Where the oldest token still kept starts, the Scanner must keep its text from there
+    int oldestStart() {
+        if (count == 0) return 0;
+        return starts[Math.max(0, count - WINDOW) & (WINDOW - 1)];
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    public int line(int index) {
+        return lines[slot(index)];
+    }
+
+    /**
+     * Keeps the source from the end of the token on, for {@link #textBefore} to copy out
+     * once the tokens after it have been scanned. Returns where the kept text starts.
+     */
+    int keepTextAfter(int index) {
+        int slot = slot(index);
+        int position = starts[slot] + lengths[slot];
+        scanner.keepText(position);
+        return position;
+    }
+
+    // The source from the kept position up to where the token starts
+    String textBefore(int index, int position) {
+        return scanner.text(position, starts[slot(index)]);
+    }
+
+    // Scans up to the token if it hasn't been yet
+    private int slot(int index) {
+        while (index >= count) scanner.scanNext();
+        if (index < count - WINDOW) {
+            throw new IllegalStateException("Token " + index + " is no longer buffered.");
+        }
+        return index & (WINDOW - 1);
+    }
+
+    public Token token(int index) {
+        if (index == lastIndex) return last;
+
+        int slot = slot(index);
+        TokenType type = TYPES[types[slot]];
+        if (type.lexeme != null) {
+            Token token = fixed[type.ordinal()];
+            if (token == null || token.line != lines[slot]) {
+                token = new Token(type, type.lexeme, null, lines[slot]);
+                fixed[type.ordinal()] = token;
+            }
+            return token;
+        }
+
+        String lexeme = scanner.intern(symbols, starts[slot], lengths[slot]);
+        Object literal = null;
+        if (type == TokenType.NUMBER) {
+            literal = number(lexeme);
+        } else if (type == TokenType.STRING) {
+            // Don't get the quotes as part of the value
+            literal = scanner.intern(symbols, starts[slot] + 1, lengths[slot] - 2);
+        }
+
+        lastIndex = index;
+        last = new Token(type, lexeme, literal, lines[slot]);
+        return last;
+    }
+
+    private Double number(String lexeme) {
+        Double value = numbers.get(lexeme);
+        if (value == null) {
+            value = Double.parseDouble(lexeme);
+            numbers.put(lexeme, value);
+        }
+        return value;
+    }
+}
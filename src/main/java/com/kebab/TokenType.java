@@ -2,22 +2,33 @@ package com.kebab;
 
 enum TokenType {
     // Single-character tokens
-    LEFT_PARENTHESIS, RIGHT_PARANTHESIS, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET,
-    COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR, COLON, QUESTION,
+    LEFT_PARENTHESIS("("), RIGHT_PARANTHESIS(")"), LEFT_BRACE("{"), RIGHT_BRACE("}"),
+    LEFT_BRACKET("["), RIGHT_BRACKET("]"),
+    COMMA(","), DOT("."), MINUS("-"), PLUS("+"), SEMICOLON(";"), SLASH("/"), STAR("*"),
+    COLON(":"), QUESTION("?"),
 
     // One or two character tokens
-    BANG, BANG_EQUAL, // ! !=
-    EQUAL, EQUAL_EQUAL,
-    GREATER, GREATER_EQUAL,
-    LESS, LESS_EQUAL,
+    BANG("!"), BANG_EQUAL("!="), // ! !=
+    EQUAL("="), EQUAL_EQUAL("=="),
+    GREATER(">"), GREATER_EQUAL(">="),
+    LESS("<"), LESS_EQUAL("<="),
 
     // Literals
-    IDENTIFIER, STRING, NUMBER,
+    IDENTIFIER(null), STRING(null), NUMBER(null),
 
     // Keywords
-    AND, CLASS, ELSE, FALSE, FUNC, FOR, IF, NIL, OR,
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
-    BREAK, STATIC, EXTENDS,
+    AND("and"), CLASS("class"), ELSE("else"), FALSE("false"), FUNC("func"), FOR("for"),
+    IF("if"), NIL("nil"), OR("or"),
+    PRINT("print"), RETURN("return"), SUPER("super"), THIS("this"), TRUE("true"),
+    VAR("var"), WHILE("while"),
+    BREAK("break"), STATIC("static"), EXTENDS("extends"),
 
-    EOF
+    EOF("");
+
+    // The spelling every token of this type has, or null for literals and identifiers
+    final String lexeme;
+
+    TokenType(String lexeme) {
+        this.lexeme = lexeme;
+    }
 }
@@ -0,0 +1,599 @@
+package com.kebab;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs programs compiled by the {@link BytecodeCompiler}. Lox functions are called
+ * without recursing on the Java stack: every call pushes a {@link CallFrame} and the
+ * dispatch loop carries on in the callee. The arguments a call pushed become the first
+ * of the callee's stack slots, and only frames that closures capture get an Environment.
+ * Numbers on the stack aren't boxed: their slot holds {@link #NUMBER} and the number is
+ * in the same slot of a parallel array, boxed only when it leaves the stack.
+ */
+public class VirtualMachine implements Engine {
+
+    private static class CallFrame {
+        BytecodeFunction function;
+        BytecodeClosure closure;
+        Environment environment;
+        // 'this' of a method, which an initializer returns
+        LoxInstance receiver;
+        int ip;
+        // Stack height when the frame was entered, restored on return
+        int base;
+        // Where its stack slots start, at the receiver of a method and after the callee otherwise
+        int locals;
+    }
+
+    // Stands in a stack slot for the number in the same slot of numbers
+    private static final Object NUMBER = new Object();
+
+    final Globals globals = new Globals();
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    public VirtualMachine() {
+        Natives.define(globals);
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        try {
+            // Compiling loads lazily parsed bodies, which fails if they have errors
+            BytecodeFunction script = new BytecodeCompiler().compile(statements);
+            if (script == null) return;
+
+            stack[sp++] = null;
+            pushFrame(script, null, null, sp - 1);
+            run(0);
+        } catch (RuntimeError error) {
+            App.runtimeError(error);
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+        }
+    }
+
+    Object invoke(BytecodeClosure closure, LoxInstance receiver, Object[] arguments) {
+        grow(sp + 1 + arguments.length);
+        int callee = sp;
+        stack[sp++] = closure;
+        System.arraycopy(arguments, 0, stack, sp, arguments.length);
+        sp += arguments.length;
+        pushFrame(closure.function, closure, receiver, callee);
+        return run(frameCount - 1);
+    }
+
+    private Object run(int exitDepth) {
+        CallFrame frame = frames[frameCount - 1];
+        int[] code = frame.function.chunk.code;
+        Object[] constants = frame.function.chunk.constants;
+        Environment environment = frame.environment;
+        int ip = frame.ip;
+        // Kept in locals for speed, written back before anything that can reenter the VM
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = this.sp;
+        int locals = frame.locals;
+        // Method an INVOKE found for CALL to run on the receiver under it on the stack
+        BytecodeClosure invoked = null;
+
+        while (true) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    Object constant = constants[code[ip++]];
+                    if (constant instanceof Double) {
+                        numbers[sp] = (double) constant;
+                        constant = NUMBER;
+                    }
+                    stack[sp++] = constant;
+                    break;
+                }
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    numbers[sp] = numbers[sp - 1];
+                    sp++;
+                    break;
+
+                case OpCode.GET_LOCAL: {
+                    int slot = locals + code[ip++];
+                    stack[sp] = stack[slot];
+                    numbers[sp] = numbers[slot];
+                    sp++;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = locals + code[ip++];
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+                case OpCode.DEFINE_LOCAL: {
+                    int slot = locals + code[ip++];
+                    sp--;
+                    stack[slot] = stack[sp];
+                    numbers[slot] = numbers[sp];
+                    break;
+                }
+                case OpCode.GET_CAPTURED:
+                    stack[sp++] = environment.getAt(code[ip], code[ip + 1]);
+                    ip += 2;
+                    break;
+                case OpCode.SET_CAPTURED:
+                    environment.assignAt(code[ip], code[ip + 1], value(stack, numbers, sp - 1));
+                    ip += 2;
+                    break;
+                case OpCode.DEFINE_CAPTURED:
+                    environment.define(code[ip++], value(stack, numbers, --sp));
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    Token name = (Token) constants[code[ip++]];
+                    stack[sp++] = globals.get(globalSlot(code, ip++, name), name);
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    Token name = (Token) constants[code[ip++]];
+                    globals.assign(globalSlot(code, ip++, name), name, value(stack, numbers, sp - 1));
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    Token name = (Token) constants[code[ip++]];
+                    globals.define(globalSlot(code, ip++, name), value(stack, numbers, --sp));
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    Token name = (Token) constants[code[ip++]];
+                    PropertyCache cache = (PropertyCache) constants[code[ip++]];
+                    Object object = stack[sp - 1];
+                    if (object instanceof LoxInstance) {
+                        stack[sp - 1] = cache.get((LoxInstance) object, name);
+                    } else if (object instanceof LoxClass) {
+                        stack[sp - 1] = ((LoxClass) object).getStaticMethod(name.lexeme);
+                    } else {
+                        throw new RuntimeError(
+                                name,
+                                "Only properties of an instance and static methods of a class can be accessed this way"
+                        );
+                    }
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    Token name = (Token) constants[code[ip++]];
+                    PropertyCache cache = (PropertyCache) constants[code[ip++]];
+                    Object object = stack[sp - 2];
+                    if (!(object instanceof LoxInstance)) {
+                        throw new RuntimeError(name, "Only instances have fields");
+                    }
+                    Object value = value(stack, numbers, --sp);
+                    cache.set((LoxInstance) object, name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    int depth = code[ip++];
+                    Token method = (Token) constants[code[ip++]];
+                    LoxClass superclass = (LoxClass) environment.getAt(depth, 0);
+                    LoxInstance object = (LoxInstance) stack[sp - 1];
+                    LoxMethod found = superclass.findMethod(method.lexeme);
+                    if (found == null) {
+                        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+                    }
+                    stack[sp - 1] = found.bind(object);
+                    break;
+                }
+
+                case OpCode.EQUAL:
+                    stack[sp - 2] = isEqual(stack, numbers, sp - 2, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.NOT_EQUAL:
+                    stack[sp - 2] = !isEqual(stack, numbers, sp - 2, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.GREATER:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    stack[sp - 2] = number(stack, numbers, sp - 2) > number(stack, numbers, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.GREATER_EQUAL:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    stack[sp - 2] = number(stack, numbers, sp - 2) >= number(stack, numbers, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.LESS:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    stack[sp - 2] = number(stack, numbers, sp - 2) < number(stack, numbers, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.LESS_EQUAL:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    stack[sp - 2] = number(stack, numbers, sp - 2) <= number(stack, numbers, sp - 1);
+                    sp--;
+                    break;
+                case OpCode.ADD: {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+                    if (isNumber(left) && isNumber(right)) {
+                        numbers[sp - 2] = number(stack, numbers, sp - 2) + number(stack, numbers, sp - 1);
+                        stack[sp - 2] = NUMBER;
+                    } else if (left instanceof String && right instanceof String) {
+                        stack[sp - 2] = (String) left + (String) right;
+                    } else {
+                        throw error(frame, ip, "Operands must be two 2 numbers or 2 strings");
+                    }
+                    sp--;
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    numbers[sp - 2] = number(stack, numbers, sp - 2) - number(stack, numbers, sp - 1);
+                    stack[sp - 2] = NUMBER;
+                    sp--;
+                    break;
+                case OpCode.MULTIPLY:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    numbers[sp - 2] = number(stack, numbers, sp - 2) * number(stack, numbers, sp - 1);
+                    stack[sp - 2] = NUMBER;
+                    sp--;
+                    break;
+                case OpCode.DIVIDE:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    if (number(stack, numbers, sp - 1) == 0) {
+                        throw error(frame, ip, "Division by 0 is not allowed");
+                    }
+                    numbers[sp - 2] = number(stack, numbers, sp - 2) / number(stack, numbers, sp - 1);
+                    stack[sp - 2] = NUMBER;
+                    sp--;
+                    break;
+                case OpCode.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (!isNumber(stack[sp - 1])) {
+                        throw error(frame, ip, "Operand must be a number");
+                    }
+                    numbers[sp - 1] = -number(stack, numbers, sp - 1);
+                    stack[sp - 1] = NUMBER;
+                    break;
+
+                case OpCode.PRINT:
+                    System.out.println(Interpreter.stringify(value(stack, numbers, --sp)));
+                    break;
+                case OpCode.JUMP:
+                    ip = code[ip];
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip++;
+                    } else {
+                        ip = code[ip];
+                    }
+                    break;
+                case OpCode.POP_JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[--sp])) {
+                        ip++;
+                    } else {
+                        ip = code[ip];
+                    }
+                    break;
+                case OpCode.JUMP_UNLESS_GREATER:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    sp -= 2;
+                    ip = number(stack, numbers, sp) > number(stack, numbers, sp + 1) ? ip + 1 : code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_GREATER_EQUAL:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    sp -= 2;
+                    ip = number(stack, numbers, sp) >= number(stack, numbers, sp + 1) ? ip + 1 : code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_LESS:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    sp -= 2;
+                    ip = number(stack, numbers, sp) < number(stack, numbers, sp + 1) ? ip + 1 : code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_LESS_EQUAL:
+                    checkNumberOperands(stack[sp - 2], stack[sp - 1], frame, ip);
+                    sp -= 2;
+                    ip = number(stack, numbers, sp) <= number(stack, numbers, sp + 1) ? ip + 1 : code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_EQUAL:
+                    sp -= 2;
+                    ip = isEqual(stack, numbers, sp, sp + 1) ? ip + 1 : code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_NOT_EQUAL:
+                    sp -= 2;
+                    ip = isEqual(stack, numbers, sp, sp + 1) ? code[ip] : ip + 1;
+                    break;
+                case OpCode.JUMP_IF_TRUE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip = code[ip];
+                    } else {
+                        ip++;
+                    }
+                    break;
+                case OpCode.ENTER_SCOPE:
+                    environment = new Environment(environment, code[ip++]);
+                    break;
+                case OpCode.EXIT_SCOPE:
+                    environment = environment.enclosing;
+                    break;
+
+                case OpCode.INVOKE: {
+                    Token name = (Token) constants[code[ip++]];
+                    PropertyCache cache = (PropertyCache) constants[code[ip++]];
+                    int callee = sp - code[ip] - 1;
+                    Object object = stack[callee];
+                    if (object instanceof LoxInstance) {
+                        LoxInstance instance = (LoxInstance) object;
+                        LoxMethod method = cache.findMethod(instance, name);
+                        if (method instanceof BytecodeClosure) {
+                            // The receiver stays in the callee's stack slot, CALL puts it in the frame
+                            invoked = (BytecodeClosure) method;
+                        } else {
+                            stack[callee] = method == null ? cache.get(instance, name) : method.bind(instance);
+                        }
+                    } else if (object instanceof LoxClass) {
+                        stack[callee] = ((LoxClass) object).getStaticMethod(name.lexeme);
+                    } else {
+                        throw new RuntimeError(
+                                name,
+                                "Only properties of an instance and static methods of a class can be accessed this way"
+                        );
+                    }
+                    // Falls through to call what was found, the argument count is CALL's operand
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++];
+                    Object callee = stack[sp - argCount - 1];
+                    BytecodeClosure closure = null;
+                    LoxInstance receiver = null;
+                    LoxInstance instance = null;
+
+                    if (invoked != null) {
+                        closure = invoked;
+                        receiver = (LoxInstance) callee;
+                        invoked = null;
+                    } else if (callee instanceof BytecodeClosure) {
+                        closure = (BytecodeClosure) callee;
+                        receiver = closure.receiver;
+                    } else if (callee instanceof LoxClass) {
+                        LoxClass klass = (LoxClass) callee;
+                        instance = new LoxInstance(klass);
+                        LoxMethod initializer = klass.initializer();
+                        if (initializer instanceof BytecodeClosure) {
+                            closure = (BytecodeClosure) initializer;
+                            receiver = instance;
+                        }
+                    } else if (!(callee instanceof LoxCallable)) {
+                        System.out.println(value(stack, numbers, sp - argCount - 1));
+                        throw error(frame, ip, "Can only call functions and classes");
+                    }
+
+                    int arity = closure != null ? closure.function.arity
+                            : callee instanceof LoxCallable ? ((LoxCallable) callee).arity() : 0;
+                    if (argCount != arity) {
+                        throw error(frame, ip, "Expected " + arity + " arguments but got " + argCount + ".");
+                    }
+
+                    if (closure != null) {
+                        frame.ip = ip;
+                        frame.environment = environment;
+                        this.sp = sp;
+                        frame = pushFrame(closure.function, closure, receiver, sp - argCount - 1);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        code = frame.function.chunk.code;
+                        constants = frame.function.chunk.constants;
+                        environment = frame.environment;
+                        locals = frame.locals;
+                        ip = 0;
+                    } else if (instance != null) {
+                        sp = popCall(stack, sp, argCount);
+                        stack[sp++] = instance;
+                    } else {
+                        Object[] arguments = new Object[argCount];
+                        for (int i = 0; i < argCount; ++i) {
+                            arguments[i] = value(stack, numbers, sp - argCount + i);
+                        }
+                        frame.ip = ip;
+                        frame.environment = environment;
+                        this.sp = sp;
+                        Object result = ((LoxCallable) callee).call(null, arguments);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = popCall(stack, sp, argCount);
+                        stack[sp++] = result;
+                    }
+                    break;
+                }
+                case OpCode.CLOSURE:
+                    stack[sp++] = new BytecodeClosure((BytecodeFunction) constants[code[ip++]], environment, this);
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    double number = numbers[sp];
+                    if (frame.function.isInitializer) {
+                        result = frame.receiver;
+                    }
+                    // Popping leaves values behind, the frame's slots are cleared all at once here
+                    int top = frame.locals + frame.function.localCount + frame.function.maxStack;
+                    Arrays.fill(stack, frame.base, top, null);
+                    sp = frame.base;
+                    frame.closure = null;
+                    frame.environment = null;
+                    frame.receiver = null;
+                    frameCount--;
+                    if (frameCount == exitDepth) {
+                        this.sp = sp;
+                        return result == NUMBER ? (Object) number : result;
+                    }
+
+                    frame = frames[frameCount - 1];
+                    code = frame.function.chunk.code;
+                    constants = frame.function.chunk.constants;
+                    environment = frame.environment;
+                    locals = frame.locals;
+                    ip = frame.ip;
+                    stack[sp] = result;
+                    numbers[sp] = number;
+                    sp++;
+                    break;
+                }
+                case OpCode.CHECK_SUPERCLASS: {
+                    Token name = (Token) constants[code[ip++]];
+                    if (!(stack[sp - 1] instanceof LoxClass)) {
+                        throw new RuntimeError(name, "A class can only inherit from another class.");
+                    }
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants[code[ip]];
+                    int methodCount = code[ip + 1];
+                    int staticCount = code[ip + 2];
+                    boolean hasSuperclass = code[ip + 3] == 1;
+                    ip += 4;
+
+                    Map<String, LoxMethod> methods = new HashMap<>();
+                    Map<String, LoxCallable> staticMethods = new HashMap<>();
+                    int first = sp - methodCount - staticCount;
+                    for (int i = 0; i < methodCount; ++i) {
+                        BytecodeClosure method = (BytecodeClosure) stack[first + i];
+                        methods.put(method.function.name, method);
+                    }
+                    for (int i = 0; i < staticCount; ++i) {
+                        BytecodeClosure staticMethod = (BytecodeClosure) stack[first + methodCount + i];
+                        staticMethods.put(staticMethod.function.name, staticMethod);
+                        System.out.println("Adding static method " + staticMethod.function.name + " to " + name);
+                    }
+                    Arrays.fill(stack, first, sp, null);
+                    sp = first;
+
+                    LoxClass superclass = null;
+                    if (hasSuperclass) {
+                        superclass = (LoxClass) stack[--sp];
+                    }
+                    stack[sp++] = new LoxClass(name, methods, staticMethods, superclass);
+                    break;
+                }
+                default:
+                    throw error(frame, ip, "Unknown instruction " + code[ip - 1] + ".");
+            }
+        }
+    }
+
+    /**
+     * Enters the function, called with the callee at the given stack index and the
+     * arguments above it, which become its first slots.
+     */
+    private CallFrame pushFrame(BytecodeFunction function, BytecodeClosure closure, LoxInstance receiver,
+            int callee) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        int locals = function.firstParameter > 0 ? callee : callee + 1;
+        grow(locals + function.localCount + function.maxStack);
+        if (function.firstParameter > 0) stack[callee] = receiver;
+
+        Environment environment = closure != null ? closure.closure : null;
+        if (function.frameCaptured) {
+            environment = new Environment(environment, function.frameSize);
+            for (int i = 0; i < function.firstParameter + function.arity; ++i) {
+                environment.values[i] = value(stack, numbers, locals + i);
+            }
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.function = function;
+        frame.closure = closure;
+        frame.environment = environment;
+        frame.receiver = receiver;
+        frame.ip = 0;
+        frame.base = callee;
+        frame.locals = locals;
+        sp = locals + function.localCount;
+        return frame;
+    }
+
+    private void grow(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size));
+            numbers = Arrays.copyOf(numbers, stack.length);
+        }
+    }
+
+    // The value in a stack slot, boxed if it's a number
+    private static Object value(Object[] stack, double[] numbers, int slot) {
+        Object value = stack[slot];
+        return value == NUMBER ? (Object) numbers[slot] : value;
+    }
+
+    private static boolean isNumber(Object value) {
+        return value == NUMBER || value instanceof Double;
+    }
+
+    private static double number(Object[] stack, double[] numbers, int slot) {
+        Object value = stack[slot];
+        return value == NUMBER ? numbers[slot] : (double) value;
+    }
+
+    // Numbers are equal the way Double.equals() has them
+    private static boolean isEqual(Object[] stack, double[] numbers, int left, int right) {
+        if (isNumber(stack[left]) && isNumber(stack[right])) {
+            return Double.doubleToLongBits(number(stack, numbers, left))
+                    == Double.doubleToLongBits(number(stack, numbers, right));
+        }
+        return Interpreter.isEqual(stack[left], stack[right]);
+    }
+
+    // The slot operand of a global instruction starts out -1 and is set on its first run
+    private int globalSlot(int[] code, int operand, Token name) {
+        int slot = code[operand];
+        if (slot < 0) {
+            slot = globals.slot(name.lexeme);
+            code[operand] = slot;
+        }
+        return slot;
+    }
+
+    // Drops the callee and its arguments once they have been copied out, returns the new stack top
+    private static int popCall(Object[] stack, int sp, int argCount) {
+        int callee = sp - argCount - 1;
+        Arrays.fill(stack, callee, sp, null);
+        return callee;
+    }
+
+    private void checkNumberOperands(Object left, Object right, CallFrame frame, int ip) {
+        if (isNumber(left) && isNumber(right)) return;
+        throw error(frame, ip, "Operands must be a number");
+    }
+
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        int line = frame.function.chunk.getLine(ip - 1);
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+}
@@ -1,13 +1,27 @@
 package com.kebab;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
 import org.junit.Test;
 
 /**
  * Unit test for simple App.
  */
-public class AppTest 
+public class AppTest
 {
     /**
      * Rigorous Test :-)
@@ -17,4 +31,202 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    @Test
+    public void syntaxErrorInFunctionBodyIsReported() throws Exception
+    {
+        Result result = run("func f() {\n  var x = ;\n}\nprint 1;\n");
+        assertEquals(65, result.exitCode);
+        assertEquals("[line 2] Error at ';': Incomplete syntax\n", result.err);
+        assertEquals("", result.out);
+    }
+
+    @Test
+    public void syntaxErrorInLoopBodyIsReported() throws Exception
+    {
+        Result result = run("while (true) { var x = ; }\n");
+        assertEquals(65, result.exitCode);
+        assertEquals("[line 1] Error at ';': Incomplete syntax\n", result.err);
+    }
+
+    @Test
+    public void nothingIsResolvedAfterSyntaxError() throws Exception
+    {
+        Result result = run("var x = 1; print f return 1; }\n");
+        assertEquals(65, result.exitCode);
+        assertFalse(result.err, result.err.contains("Can't return"));
+    }
+
+    @Test
+    public void lazyParseReportsScanErrorsInSkimmedBody() throws Exception
+    {
+        Result result = run("func f() {\n  var x = 1 @ 2;\n}\nprint 1;\n", "--lazy-parse");
+        assertEquals(65, result.exitCode);
+        assertEquals("[line 2] Error: Unexpected character.\n", result.err);
+    }
+
+    @Test
+    public void lazyParseOnlyWorksWithInterpreter() throws Exception
+    {
+        Result result = run("print 1;\n", "--lazy-parse", "--engine=vm");
+        assertEquals(64, result.exitCode);
+        assertEquals("", result.out);
+    }
+
+    @Test
+    public void jvmEngineCallsWhatTheInterpreterDefined() throws Exception
+    {
+        // A string constant too long for a class file sends its batch to the Interpreter
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 22000; ++i) big.append('x');
+        Result result = run("var big = \"" + big + "\";\n"
+                + "func g() { return 2; }\n"
+                + "class C { init(n) { this.n = n; } get() { return this.n; } }\n"
+                + "print g();\n"
+                + "print C(5).get();\n", "--engine=jvm");
+        assertEquals("", result.err);
+        assertEquals("2\n5\n", result.out);
+        assertEquals(0, result.exitCode);
+    }
+
+    @Test
+    public void damagedCacheFileIsAMiss() throws Exception
+    {
+        String source = "func f(n) { return n * 2; }\nvar i = 0;\nwhile (i < 3) { print f(i); i = i + 1; }\n";
+        Path cache = Files.createTempDirectory("lox-cache");
+        try {
+            String option = "--cache=" + cache;
+            assertEquals("0\n2\n4\n", run(source, option).out);
+            Path file;
+            try (Stream<Path> files = Files.list(cache)) {
+                file = files.filter(path -> path.toString().endsWith(".ast")).findFirst().get();
+            }
+            byte[] bytes = Files.readAllBytes(file);
+
+            Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+            Result result = run(source, option);
+            assertEquals("", result.err);
+            assertEquals("0\n2\n4\n", result.out);
+
+            bytes[bytes.length / 2] ^= 0x55;
+            Files.write(file, bytes);
+            result = run(source, option);
+            assertEquals("", result.err);
+            assertEquals("0\n2\n4\n", result.out);
+            assertEquals("0\n2\n4\n", run(source, option).out);
+        } finally {
+            try (Stream<Path> files = Files.list(cache)) {
+                for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+            }
+            Files.delete(cache);
+        }
+    }
+
+    @Test
+    public void compiledJarRunsLocalSubclasses() throws Exception
+    {
+        String source = "class Base { init(n) { this.n = n; } get() { return this.n; } }\n"
+                + "func mk() { class D extends Base {} return D(1); }\n"
+                + "print mk().get();\n"
+                + "func mk2() { var a = 2; var b = 3; class E extends Base { get() { return super.get() * a; } } return E(b); }\n"
+                + "print mk2().get();\n"
+                + "{ var x = 5; class F extends Base { get() { return super.get() + x; } } print F(2).get(); }\n";
+        Result expected = run(source);
+        assertEquals("1\n6\n7\n", expected.out);
+        Result result = compileAndRun(source);
+        assertEquals(expected.err, result.err);
+        assertEquals(expected.out, result.out);
+        assertEquals(0, result.exitCode);
+    }
+
+    /**
+     * Runs the source as a script in a new JVM, since App exits when it's done.
+     */
+    static Result run(String source, String... options) throws IOException, InterruptedException
+    {
+        Path script = Files.createTempFile("lox-test", ".lox");
+        try {
+            Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+            List<String> command = app();
+            command.addAll(Arrays.asList(options));
+            command.add(script.toString());
+            return exec(command);
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    /**
+     * Compiles the source into a jar with {@code compile}, then runs the jar in a new JVM.
+     */
+    static Result compileAndRun(String source) throws IOException, InterruptedException
+    {
+        Path script = Files.createTempFile("lox-test", ".lox");
+        Path jar = Files.createTempFile("lox-test", ".jar");
+        try {
+            Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+            List<String> command = app();
+            command.addAll(Arrays.asList("compile", script.toString(), jar.toString()));
+            Result compiled = exec(command);
+            if (compiled.exitCode != 0) return compiled;
+            return exec(new ArrayList<>(Arrays.asList(java(), "-jar", jar.toString())));
+        } finally {
+            Files.delete(script);
+            Files.delete(jar);
+        }
+    }
+
+    private static List<String> app() throws IOException
+    {
+        String classPath = location(App.class) + File.pathSeparator + location(org.objectweb.asm.ClassWriter.class);
+        return new ArrayList<>(Arrays.asList(java(), "-cp", classPath, "com.kebab.App"));
+    }
+
+    private static String java()
+    {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    private static Result exec(List<String> command) throws IOException, InterruptedException
+    {
+        Path out = Files.createTempFile("lox-test", ".out");
+        Path err = Files.createTempFile("lox-test", ".err");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(out.toFile()).redirectError(err.toFile()).start();
+            int exitCode = process.waitFor();
+            return new Result(exitCode, read(out), read(err));
+        } finally {
+            Files.delete(out);
+            Files.delete(err);
+        }
+    }
+
+    private static String location(Class<?> type) throws IOException
+    {
+        try {
+            return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String read(Path file) throws IOException
+    {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    static class Result
+    {
+        final int exitCode;
+        final String out;
+        final String err;
+
+        Result(int exitCode, String out, String err)
+        {
+            this.exitCode = exitCode;
+            this.out = out;
+            this.err = err;
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package com.kebab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class AstCacheTest
+{
+    private static final String PROGRAM = String.join("\n",
+            "var a = 1.5; var b = \"two\"; var c = nil; var d = !true;",
+            "func add(x, y) { var sum = x + y; return sum; }",
+            "class Base { init(n) { this.n = n; } get() { return this.n; } static make(n) { return Base(n); } }",
+            "class Derived extends Base { get() { var f = [k] { return super.get() * k; }; return f(2); } }",
+            "{ var inner = a; inner = inner - 1; print inner; }",
+            "var i = 0;",
+            "while (i < 3) { if (i == 1) print \"one\"; else print -i; i = i + 1; }",
+            "while (true) { break; }",
+            "print d or a > 1 and b != \"three\" ? (a, b) : c;",
+            "print Derived(4).get() / 2;",
+            "print Base.make(3).get();",
+            "");
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception
+    {
+        Parser parser = new Parser(new Scanner(PROGRAM).scanTokens());
+        Resolver resolver = new Resolver();
+        List<Stmt> statements = parser.parse();
+        resolver.resolve(statements);
+
+        Path directory = Files.createTempDirectory("lox-cache");
+        try {
+            AstCache cache = new AstCache(directory);
+            String key = AstCache.key(ByteBuffer.wrap(PROGRAM.getBytes(StandardCharsets.UTF_8)), false);
+            AstWriter writer = cache.create(key);
+            assertNotNull(writer);
+            for (Stmt statement : statements) {
+                writer.write(statement);
+            }
+            writer.commit();
+
+            AstReader reader = cache.open(key);
+            assertNotNull(reader);
+            List<Stmt> read = new ArrayList<>();
+            for (Stmt statement = reader.next(); statement != null; statement = reader.next()) {
+                read.add(statement);
+            }
+            assertEquals(new AstPrinter().print(statements), new AstPrinter().print(read));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.kebab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the same programs on every engine and expects what the Interpreter prints.
+ */
+@RunWith(Parameterized.class)
+public class EngineParityTest
+{
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> engines()
+    {
+        return Arrays.asList(new Object[][] {{"vm"}, {"closure"}, {"specializing"}, {"jvm"}});
+    }
+
+    private final String engine;
+
+    public EngineParityTest(String engine)
+    {
+        this.engine = engine;
+    }
+
+    @Test
+    public void testScript() throws Exception
+    {
+        // What clock() prints differs between any two runs
+        String source = new String(Files.readAllBytes(Paths.get("test.lox")), StandardCharsets.UTF_8);
+        assertSameAsInterpreter(source.replace("print clock();", "print clock() > 0;"));
+    }
+
+    @Test
+    public void classes() throws Exception
+    {
+        assertSameAsInterpreter("class A { init(n) { this.n = n; } get() { return this.n; } twice() { return this.get() * 2; }\n"
+                + "  static make() { return A(7); } }\n"
+                + "class B extends A { init(n) { super.init(n + 1); } get() { return super.get() + 10; } }\n"
+                + "class C extends B { twice() { return super.twice() + 100; } }\n"
+                + "print A(1).twice(); print B(1).twice(); print C(1).twice(); print A.make().get();\n"
+                + "var a = A(3); var get = a.get; a.n = 4; print get();\n"
+                + "a.extra = \"field\"; print a.extra; print a; print A; print A(1).init(9).n;\n");
+    }
+
+    @Test
+    public void localSubclasses() throws Exception
+    {
+        assertSameAsInterpreter("class Base { init(n) { this.n = n; } get() { return this.n; } }\n"
+                + "func mk() { class D extends Base {} return D(1); }\n"
+                + "print mk().get();\n"
+                + "func mk2() { var a = 1; var b = 2; class E extends Base { get() { return super.get() * a; } } return E(a + b); }\n"
+                + "print mk2().get();\n"
+                + "{ var x = 5; class F extends Base { get() { return super.get() * x; } } print F(2).get(); }\n");
+    }
+
+    @Test
+    public void closures() throws Exception
+    {
+        assertSameAsInterpreter("func counter() { var n = 0; func next() { n = n + 1; return n; } return next; }\n"
+                + "var c = counter(); c(); c(); print c(); print counter()();\n"
+                + "var fs = nil; var i = 0;\n"
+                + "while (i < 3) { var j = i; func f() { return j * 10; } if (i == 1) fs = f; i = i + 1; }\n"
+                + "print fs();\n"
+                + "func adder(x) { var add = [y] { return x + y; }; return add; }\n"
+                + "print adder(2)(3);\n"
+                + "func outer() { var x = \"a\"; func mid() { func inner() { x = x + \"b\"; return x; } return inner; } return mid()(); }\n"
+                + "print outer();\n");
+    }
+
+    @Test
+    public void breakAndReturn() throws Exception
+    {
+        assertSameAsInterpreter("func find(n) { var i = 0; while (true) { if (i * i >= n) return i; i = i + 1; } }\n"
+                + "print find(50);\n"
+                + "var i = 0; var total = 0;\n"
+                + "while (i < 10) { var j = 0; while (true) { if (j == i) break; total = total + j; j = j + 1; }\n"
+                + "  if (i == 7) break; i = i + 1; }\n"
+                + "print total; print i;\n"
+                + "for (var k = 0; k < 5; k = k + 1) { if (k == 3) break; print k; }\n"
+                + "func none() { return; } print none();\n"
+                + "func early(x) { if (x) { { return \"inner\"; } } return \"outer\"; } print early(true); print early(false);\n");
+    }
+
+    @Test
+    public void operandsMustBeNumbers() throws Exception
+    {
+        assertSameAsInterpreter("print 1;\nprint 2 - \"a\";\nprint 3;\n");
+    }
+
+    @Test
+    public void comparedConditionMustBeNumbers() throws Exception
+    {
+        assertSameAsInterpreter("var i = 0;\nwhile (i < 2) i = i + 1;\nif (i == 2) print i;\nif (i != nil) print \"set\";\n"
+                + "while (i <\n\"a\") print i;\n");
+    }
+
+    @Test
+    public void callingANonFunction() throws Exception
+    {
+        assertSameAsInterpreter("func f() { var x = \"s\"; return x(); }\nprint 1;\nf();\n");
+    }
+
+    @Test
+    public void undefinedVariable() throws Exception
+    {
+        assertSameAsInterpreter("print 1;\nprint missing;\n");
+    }
+
+    @Test
+    public void wrongNumberOfArguments() throws Exception
+    {
+        assertSameAsInterpreter("func f(a, b) { return a + b; }\nprint f(1, 2);\nprint f(1);\n");
+    }
+
+    @Test
+    public void undefinedProperty() throws Exception
+    {
+        assertSameAsInterpreter("class A {}\nvar a = A();\nprint a.nope;\n");
+    }
+
+    private void assertSameAsInterpreter(String source) throws Exception
+    {
+        AppTest.Result expected = AppTest.run(source);
+        AppTest.Result result = AppTest.run(source, "--engine=" + engine);
+        assertEquals(expected.out, result.out);
+        assertEquals(expected.err, result.err);
+        assertEquals(expected.exitCode, result.exitCode);
+    }
+}
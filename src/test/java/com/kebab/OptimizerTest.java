@@ -0,0 +1,51 @@
+package com.kebab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class OptimizerTest
+{
+    @Test
+    public void foldsNumbersAndStrings()
+    {
+        assertEquals("(print 7)\n(print \"ab\")\n(print false)\n",
+                optimize("print 1 + 2 * 3; print \"a\" + \"b\"; print 1 == \"1\";"));
+    }
+
+    @Test
+    public void leavesDivisionByZeroForTheEngine()
+    {
+        assertEquals("(print (/ 1 0))\n", optimize("print 1 / 0;"));
+    }
+
+    @Test
+    public void leavesMixedTypesForTheEngine()
+    {
+        assertEquals("(print (+ 1 \"a\"))\n(print (- \"a\" 1))\n(print (< true 1))\n",
+                optimize("print 1 + \"a\"; print \"a\" - 1; print true < 1;"));
+    }
+
+    @Test
+    public void dividesByPowersOfTwoWithAMultiplication()
+    {
+        assertEquals("(var x 3)\n(print (* x 0.125))\n(print (* x -0.5))\n(print (/ x 3))\n",
+                optimize("var x = 3; print x / 8; print x / -2; print x / 3;"));
+    }
+
+    @Test
+    public void removesCodeAfterReturnAndBreak()
+    {
+        assertEquals("(func f ()\n  (return 1))\n(while true\n  (block\n    (break)))\n",
+                optimize("func f() { return 1; print 2; }\nwhile (true) { break; print 3; }\n"));
+    }
+
+    private static String optimize(String source)
+    {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return new AstPrinter().print(new Optimizer().optimize(statements));
+    }
+}
@@ -32,7 +32,9 @@ def defineAst(outputDir, baseName, types):
         # Define types
         for t in types:
             className = t.split(':')[0].strip()
-            fields = t.split(':')[1].strip()
+            fields = t.split(':')[1].split('|')[0].strip()
+            # Everything after '|' is mutable data filled in by later passes (e.g. the Resolver)
+            extras = t.split(':')[1].split('|')[1:]
 
             file.write(f'\tstatic class {className} extends {baseName} {{\n')
 
@@ -40,6 +42,9 @@ def defineAst(outputDir, baseName, types):
                 if field == "":
                     continue
                 file.write(f'\t\tfinal {field};\n')
+            for extra in extras:
+                for field in extra.split(', '):
+                    file.write(f'\t\t{field.strip()};\n')
 
             file.write(f'\t\t{className} ({fields}) {{\n')
 
@@ -76,20 +81,20 @@ defineAst(
     outputDir,
     "Expr",
     [
-        "Assign: Token name, Expr value",
+        "Assign: Token name, Expr value | int depth = -1, int slot = -1",
         "Binary: Expr left, Token operator, Expr right",
         "Ternary: Expr condition, Expr left, Expr right",
         "Call: Expr callee, Token paren, List<Expr> arguments",
-        "Get: Expr object, Token name",
+        "Get: Expr object, Token name | PropertyCache cache = new PropertyCache()",
         "Grouping: Expr expression",
-        "Lambda: List<Token> params, List<Stmt> body",
+        "Lambda: List<Token> params, List<Stmt> body | int frameSize = 0",
         "Literal : Object value",
         "Logical : Expr left, Token operator, Expr right",
-        "Set: Expr object, Token name, Expr value",
-        "Super: Token keyword, Token method",
-        "This: Token keyword",
+        "Set: Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+        "Super: Token keyword, Token method | int depth = -1, int thisDepth = -1",
+        "This: Token keyword | int depth = -1, int slot = -1",
         "Unary :Token operator, Expr right",
-        "Variable: Token name"
+        "Variable: Token name | int depth = -1, int slot = -1"
     ]
 )
 
@@ -97,15 +102,15 @@ defineAst(
     outputDir,
     "Stmt",
     [
-        "Block: List<Stmt> statements",
+        "Block: List<Stmt> statements | int frameSize = 0",
         "Break: Token token",
-        "Class: Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods, Expr.Variable superclass",
+        "Class: Token name, List<Stmt.Function> methods, List<Stmt.Function> staticMethods, Expr.Variable superclass | int slot = -1",
         "Expression: Expr expression",
-        "Function: Token name, List<Token> params, List<Stmt> body",
+        "Function: Token name, List<Token> params, List<Stmt> body | int slot = -1, int frameSize = 0",
         "If: Expr condition, Stmt thenBranch, Stmt elseBranch",
         "Print : Expr expression",
         "Return: Token keyword, Expr value",
-        "Var: Token name, Expr initializer",
+        "Var: Token name, Expr initializer | int slot = -1",
         "While: Expr condition, Stmt body",
     ]
 )
@@ -0,0 +1,58 @@
+import os
+import statistics
+import subprocess
+import sys
+import tempfile
+import time
+
+# Reports how long jlox takes to print its first output, for a one-line script and for the
+# REPL's prompt, started as a plain jar, with the class data sharing archive built by
+# 'mvn -P cds package' and as the native image built by 'mvn -P native package'. Variants
+# that haven't been built are skipped.
+
+RUNS = 10
+
+arguments = sys.argv
+
+if len(arguments) > 2:
+    print('Usage: python startup_benchmark.py [target_directory]')
+    exit(1)
+
+target = arguments[1] if len(arguments) == 2 else 'target'
+jar = os.path.join(target, 'lox-1.0-SNAPSHOT.jar')
+archive = os.path.join(target, 'lox.jsa')
+image = os.path.join(target, 'jlox')
+
+
+# Seconds from starting the command to the first byte it writes to stdout
+def timeToFirstOutput(command):
+    start = time.perf_counter()
+    process = subprocess.Popen(command, stdin=subprocess.PIPE, stdout=subprocess.PIPE, stderr=subprocess.DEVNULL)
+    process.stdout.read(1)
+    elapsed = time.perf_counter() - start
+    process.kill()
+    process.wait()
+    return elapsed
+
+
+def benchmark(name, command, script):
+    for mode, arguments in (('script', [script]), ('REPL', [])):
+        times = [timeToFirstOutput(command + arguments) for _ in range(RUNS)]
+        print(f'{name:<10} {mode:<7} {statistics.median(times) * 1000:7.1f} ms')
+
+
+if not os.path.exists(jar):
+    print(f'No {jar}, build it with mvn package')
+    exit(1)
+
+with tempfile.NamedTemporaryFile('w', suffix='.lox', delete=False) as script:
+    script.write('print "Hello, world!";\n')
+
+try:
+    benchmark('jar', ['java', '-jar', jar], script.name)
+    if os.path.exists(archive):
+        benchmark('jar + CDS', ['java', f'-XX:SharedArchiveFile={archive}', '-jar', jar], script.name)
+    if os.path.exists(image):
+        benchmark('native', [image], script.name)
+finally:
+    os.remove(script.name)